@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.embulk.input.sftp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Reads 64MB from memory through DigestingInputStream in reads of 32KB, as BufferFillingFileInput does,
+// to show the overhead of each checksum next to "none". Divide 64MB by the score to get the throughput.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DigestBenchmark
+{
+    private static final int SIZE = 64 * 1024 * 1024;
+
+    @Param({"none", "crc32c", "md5", "sha256"})
+    public String checksum;
+
+    private byte[] data;
+    private byte[] buffer;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        data = new byte[SIZE];
+        new Random(0).nextBytes(data);
+        buffer = new byte[32 * 1024];
+    }
+
+    @Benchmark
+    public long read() throws IOException
+    {
+        PluginTask.ChecksumAlgorithm algorithm = PluginTask.ChecksumAlgorithm.fromString(checksum);
+        InputStream in = new ByteArrayInputStream(data);
+        if (algorithm != PluginTask.ChecksumAlgorithm.NONE) {
+            in = new DigestingInputStream(in, algorithm, Optional.empty(), "bench");
+        }
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.apache.commons.io.FileUtils;
+import org.embulk.config.ConfigSource;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.BufferImpl;
+import org.embulk.spi.FileInput;
+import org.embulk.util.file.InputStreamFileInput;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Reads a large file into Embulk buffers through InputStreamFileInput and through BufferFillingFileInput.
+// "bytes", "buffers" and "cpuMicros" are reported per second. bytes / cpuMicros * 1000000 is the number of
+// bytes per CPU-second. The CPU time is of the whole process, so it includes the in-process server.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FileInputBenchmark
+{
+    static final int PORT = 20124;
+
+    // the default page size of Embulk
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    @Param({"input_stream", "buffer_filling"})
+    public String input;
+
+    private Path root;
+    private EmbeddedSftpServer server;
+    private PluginTask task;
+    private BufferAllocator allocator;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters
+    {
+        public long bytes;
+        public long buffers;
+        public long cpuMicros;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        root = Files.createTempDirectory("embulk-input-sftp-bench");
+        ReadThroughputBenchmark.generateTree(root.resolve("bench"), 1, 256 * 1024 * 1024);
+        server = new EmbeddedSftpServer(root, PORT);
+        ConfigSource config = server.config("/bench/");
+        task = SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        task.setFiles(SftpFileInput.listFilesByPrefix(task));
+        allocator = new BufferAllocator()
+        {
+            @Override
+            public Buffer allocate()
+            {
+                return allocate(BUFFER_SIZE);
+            }
+
+            @Override
+            public Buffer allocate(int minimumCapacity)
+            {
+                return BufferImpl.allocate(minimumCapacity);
+            }
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        server.close();
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Benchmark
+    public long readFile(Counters counters)
+    {
+        long cpuStart = processCpuNanos();
+        long total = 0;
+        try (FileInput fileInput = newFileInput()) {
+            while (fileInput.nextFile()) {
+                Buffer buffer;
+                while ((buffer = fileInput.poll()) != null) {
+                    total += buffer.limit();
+                    counters.buffers++;
+                    buffer.release();
+                }
+            }
+        }
+        counters.cpuMicros += (processCpuNanos() - cpuStart) / 1000;
+        counters.bytes += total;
+        return total;
+    }
+
+    private FileInput newFileInput()
+    {
+        SingleFileProvider provider = new SingleFileProvider(task, 0,
+                SftpFileSystemManager.openSession(SftpFileInput.initializeFsOptions(task)), new TransferMetrics(0));
+        if (input.equals("input_stream")) {
+            return new InputStreamFileInput(allocator, provider);
+        }
+        return new BufferFillingFileInput(allocator, provider);
+    }
+
+    private static long processCpuNanos()
+    {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+}
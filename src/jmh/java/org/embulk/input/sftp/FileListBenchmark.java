@@ -0,0 +1,127 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Benchmark)
+public class FileListBenchmark
+{
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int entries;
+
+    @Param({"0", "1073741824"})
+    public long minTaskSize;
+
+    private FileList fileList;
+    private FileList singleTaskList;
+    private List<FileList.Entry> allEntries;
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new Jdk8Module());
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        fileList = build(minTaskSize);
+        singleTaskList = build(Long.MAX_VALUE);
+        allEntries = new ArrayList<>(entries);
+        for (int i = 0; i < entries; i++) {
+            allEntries.add(new FileList.Entry(i, size(i)));
+        }
+    }
+
+    @Benchmark
+    public FileList buildFileList()
+    {
+        return build(minTaskSize);
+    }
+
+    @Benchmark
+    public List<List<FileList.Entry>> getSplits()
+    {
+        return newBuilder(minTaskSize).getSplits(allEntries);
+    }
+
+    @Benchmark
+    public byte[] serializeFileList() throws Exception
+    {
+        return mapper.writeValueAsBytes(fileList);
+    }
+
+    // every task decodes the list from the head up to its own entries, so the last task pays the most
+    @Benchmark
+    public void readLastTask(Blackhole blackhole)
+    {
+        for (String path : fileList.get(fileList.getTaskCount() - 1)) {
+            blackhole.consume(path);
+        }
+    }
+
+    @Benchmark
+    public void iterateAllEntries(Blackhole blackhole)
+    {
+        for (String path : singleTaskList.get(0)) {
+            blackhole.consume(path);
+        }
+    }
+
+    private FileList build(long minTaskSize)
+    {
+        FileList.Builder builder = newBuilder(minTaskSize);
+        for (int i = 0; i < entries; i++) {
+            builder.add(path(i), size(i));
+        }
+        return builder.build();
+    }
+
+    private static FileList.Builder newBuilder(long minTaskSize)
+    {
+        return new FileList.Builder().pathMatchPattern(".*").minTaskSize(minTaskSize);
+    }
+
+    private static String path(int i)
+    {
+        return String.format("sftp://username@127.0.0.1:22/data/partner/%04d/file-%08d.csv", i % 1000, i);
+    }
+
+    private static long size(int i)
+    {
+        return 1024L * (1 + i % 4096);
+    }
+}
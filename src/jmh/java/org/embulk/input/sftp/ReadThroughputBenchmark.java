@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.apache.commons.io.FileUtils;
+import org.embulk.config.ConfigSource;
+import org.embulk.util.file.InputStreamFileInput.InputStreamWithHints;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// End-to-end listing and download against an in-process SFTP server serving a generated tree.
+// "bytes" and "files" are reported per second next to the score.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReadThroughputBenchmark
+{
+    static final int PORT = 20122;
+
+    // <file count>x<file size>: many small files, and a few large files
+    @Param({"1000x65536", "16x67108864"})
+    public String tree;
+
+    private Path root;
+    private EmbeddedSftpServer server;
+    private PluginTask task;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters
+    {
+        public long bytes;
+        public long files;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        root = Files.createTempDirectory("embulk-input-sftp-bench");
+        String[] countAndSize = tree.split("x");
+        generateTree(root.resolve("bench"), Integer.parseInt(countAndSize[0]), Integer.parseInt(countAndSize[1]));
+        server = new EmbeddedSftpServer(root, PORT);
+        // the whole tree is one task to measure a single stream
+        ConfigSource config = server.config("/bench/").set("min_task_size", Long.MAX_VALUE);
+        task = SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        task.setFiles(SftpFileInput.listFilesByPrefix(task));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        server.close();
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Benchmark
+    public int listFiles()
+    {
+        return SftpFileInput.listFilesByPrefix(task).getTaskCount();
+    }
+
+    // opens a new session per file like the tasks do
+    @Benchmark
+    public long readFiles(Counters counters) throws IOException
+    {
+        byte[] buffer = new byte[128 * 1024];
+        long total = 0;
+        for (String path : task.getFiles().get(0)) {
+            PluginTask fileTask = taskOf(path);
+            try (SingleFileProvider provider = new SingleFileProvider(fileTask, 0,
+                    SftpFileInput.initializeStandardFileSystemManager(), SftpFileInput.initializeFsOptions(fileTask), new TransferMetrics(0))) {
+                InputStreamWithHints stream = provider.openNextWithHints();
+                try (InputStream in = stream.getInputStream()) {
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        total += n;
+                    }
+                }
+            }
+            counters.files++;
+        }
+        counters.bytes += total;
+        return total;
+    }
+
+    private PluginTask taskOf(String path)
+    {
+        PluginTask fileTask = SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.createTaskMapper().map(task.toTaskSource(), PluginTask.class);
+        FileList.Builder builder = new FileList.Builder().pathMatchPattern(".*");
+        builder.add(path, 0);
+        fileTask.setFiles(builder.build());
+        return fileTask;
+    }
+
+    static void generateTree(Path dir, int count, int size) throws IOException
+    {
+        Files.createDirectories(dir);
+        byte[] chunk = new byte[64 * 1024];
+        new Random(0).nextBytes(chunk);
+        for (int i = 0; i < count; i++) {
+            try (OutputStream out = Files.newOutputStream(dir.resolve(String.format("file-%06d.csv", i)))) {
+                for (int written = 0; written < size; written += chunk.length) {
+                    out.write(chunk, 0, Math.min(chunk.length, size - written));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.apache.commons.io.FileUtils;
+import org.embulk.config.ConfigSource;
+import org.embulk.util.file.InputStreamFileInput.InputStreamWithHints;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Time from opening a task to the first byte of its file, with a StandardFileSystemManager for each task
+// and with the shared SftpFileSystemManager. The SSH handshake to the in-process server is included in both.
+// The first task of a JVM, which initializes the shared manager, is measured with "-bm ss -wi 0 -i 1 -f 20".
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartupBenchmark
+{
+    static final int PORT = 20123;
+
+    @Param({"standard", "sftp_only"})
+    public String manager;
+
+    private Path root;
+    private EmbeddedSftpServer server;
+    private PluginTask task;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        root = Files.createTempDirectory("embulk-input-sftp-bench");
+        ReadThroughputBenchmark.generateTree(root.resolve("bench"), 1, 4096);
+        server = new EmbeddedSftpServer(root, PORT);
+        ConfigSource config = server.config("/bench/");
+        task = SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        task.setFiles(SftpFileInput.listFilesByPrefix(task));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        server.close();
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Benchmark
+    public int openToFirstByte() throws IOException
+    {
+        try (SingleFileProvider provider = newProvider()) {
+            InputStreamWithHints stream = provider.openNextWithHints();
+            try (InputStream in = stream.getInputStream()) {
+                return in.read();
+            }
+        }
+    }
+
+    private SingleFileProvider newProvider()
+    {
+        if (manager.equals("standard")) {
+            return new SingleFileProvider(task, 0, SftpFileInput.initializeStandardFileSystemManager(),
+                    SftpFileInput.initializeFsOptions(task), new TransferMetrics(0));
+        }
+        return new SingleFileProvider(task, 0, SftpFileSystemManager.openSession(SftpFileInput.initializeFsOptions(task)), new TransferMetrics(0));
+    }
+}
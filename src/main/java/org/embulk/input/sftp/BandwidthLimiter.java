@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Token bucket shared by every stream of the JVM which reads from the same host and port.
+// It keeps only the time when the bucket becomes empty (the theoretical arrival time of GCRA) in an AtomicLong,
+// so acquiring is a single CAS without locks, and the unlimited limiter doesn't wrap streams at all.
+class BandwidthLimiter
+{
+    static final BandwidthLimiter UNLIMITED = new BandwidthLimiter(0);
+
+    // bytes which can be read without waiting after an idle period
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final ConcurrentMap<String, BandwidthLimiter> limiters = new ConcurrentHashMap<>();
+
+    private volatile long bytesPerSecond;
+    private final AtomicLong emptyAt = new AtomicLong(System.nanoTime());
+
+    BandwidthLimiter(long bytesPerSecond)
+    {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    static BandwidthLimiter of(PluginTask task)
+    {
+        if (!task.getMaxBandwidthMbps().isPresent()) {
+            return UNLIMITED;
+        }
+        long bytesPerSecond = (long) (task.getMaxBandwidthMbps().get() * 1000 * 1000 / 8);
+        BandwidthLimiter limiter = limiters.computeIfAbsent(task.getHost() + ":" + task.getPort(),
+                key -> new BandwidthLimiter(bytesPerSecond));
+        // the last configured rate wins when tasks of different configs share the JVM
+        limiter.bytesPerSecond = bytesPerSecond;
+        return limiter;
+    }
+
+    boolean isUnlimited()
+    {
+        return bytesPerSecond <= 0;
+    }
+
+    InputStream limit(InputStream in)
+    {
+        if (isUnlimited()) {
+            return in;
+        }
+        return new LimitedInputStream(in);
+    }
+
+    // takes bytes from the bucket, and waits until the bucket has them if it went below empty
+    void acquire(long bytes) throws InterruptedException
+    {
+        long rate = bytesPerSecond;
+        if (rate <= 0 || bytes <= 0) {
+            return;
+        }
+        long cost = bytes * 1000000000L / rate;
+        long now = System.nanoTime();
+        long next;
+        while (true) {
+            long prev = emptyAt.get();
+            // an idle bucket refills up to the burst
+            next = Math.max(prev, now - BURST_NANOS) + cost;
+            if (emptyAt.compareAndSet(prev, next)) {
+                break;
+            }
+        }
+        long wait = next - now - BURST_NANOS;
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    private class LimitedInputStream
+            extends FilterInputStream
+    {
+        LimitedInputStream(InputStream in)
+        {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b >= 0) {
+                throttle(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int n = super.read(b, off, len);
+            throttle(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long skipped = super.skip(n);
+            throttle(skipped);
+            return skipped;
+        }
+
+        private void throttle(long bytes) throws IOException
+        {
+            try {
+                acquire(bytes);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.embulk.spi.Buffer;
+import org.embulk.spi.BufferAllocator;
+import org.embulk.spi.FileInput;
+import org.embulk.util.file.InputStreamFileInput;
+import org.embulk.util.file.InputStreamFileInput.InputStreamWithHints;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Optional;
+
+// A FileInput of the streams of a provider, like InputStreamFileInput, which reads straight into the array of
+// each buffer from the allocator and fills the buffer before handing it over. A read of the SFTP stream returns
+// the data of one SSH packet at most, so a buffer for each read handed small buffers to the decoders and the parser.
+class BufferFillingFileInput
+        implements FileInput
+{
+    private final BufferAllocator allocator;
+    private final InputStreamFileInput.Provider provider;
+    private InputStream current = null;
+    private Optional<String> hint = Optional.empty();
+
+    BufferFillingFileInput(BufferAllocator allocator, InputStreamFileInput.Provider provider)
+    {
+        this.allocator = allocator;
+        this.provider = provider;
+    }
+
+    @Override
+    public boolean nextFile()
+    {
+        closeCurrent();
+        InputStreamWithHints next;
+        try {
+            next = provider.openNextWithHints();
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        if (next == null) {
+            return false;
+        }
+        current = next.getInputStream();
+        hint = next.getHintOfInputFileNameForLogging();
+        return true;
+    }
+
+    @Override
+    public Buffer poll()
+    {
+        if (current == null) {
+            throw new IllegalStateException("nextFile() must be called before poll()");
+        }
+        Buffer buffer = allocator.allocate();
+        try {
+            int n = fill(current, buffer.array(), buffer.offset(), buffer.capacity());
+            if (n == 0) {
+                return null;
+            }
+            buffer.limit(n);
+            Buffer filled = buffer;
+            buffer = null;
+            return filled;
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        finally {
+            if (buffer != null) {
+                buffer.release();
+            }
+        }
+    }
+
+    // reads until length bytes or the end of the stream. Returns 0 at the end of the stream.
+    static int fill(InputStream in, byte[] array, int offset, int length) throws IOException
+    {
+        int n = 0;
+        while (n < length) {
+            int r = in.read(array, offset + n, length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        return n;
+    }
+
+    @Override
+    public Optional<String> hintOfCurrentInputFileNameForLogging()
+    {
+        return hint;
+    }
+
+    @Override
+    public void close()
+    {
+        try {
+            closeCurrent();
+        }
+        finally {
+            try {
+                provider.close();
+            }
+            catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
+
+    private void closeCurrent()
+    {
+        if (current == null) {
+            return;
+        }
+        try {
+            current.close();
+        }
+        catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        finally {
+            current = null;
+            hint = Optional.empty();
+        }
+    }
+}
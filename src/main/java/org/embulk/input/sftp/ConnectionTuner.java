@@ -0,0 +1,210 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import com.jcraft.jsch.Channel;
+import org.apache.commons.vfs2.FileObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.Optional;
+
+// Sizes the SFTP read pipeline of a single stream from the RTT and bandwidth measured against the server.
+// commons-vfs2 does not expose the JSch channel, so the tuned values are applied to the channel which
+// SftpFileSystem keeps idle between operations. The next getInputStream() picks that channel up.
+class ConnectionTuner
+{
+    private static final Logger log = LoggerFactory.getLogger(ConnectionTuner.class);
+
+    // JSch ChannelSftp defaults: 32KB packets, 2MB local window and 16 outstanding READ requests
+    static final int DEFAULT_PACKET_SIZE = 32 * 1024;
+    static final int DEFAULT_WINDOW_SIZE = 2 * 1024 * 1024;
+    static final int DEFAULT_BULK_REQUESTS = 16;
+
+    static final int MAX_WINDOW_SIZE = 64 * 1024 * 1024;
+    static final int MAX_BULK_REQUESTS = MAX_WINDOW_SIZE / DEFAULT_PACKET_SIZE;
+
+    private static final int RTT_SAMPLES = 3;
+    private static final long MIN_PROBE_BYTES = 256 * 1024;
+    private static final int PROBE_GROWTH = 4;
+    private static final double PIPELINE_BOUND_RATIO = 0.8;
+
+    private ConnectionTuner()
+    {
+    }
+
+    static class Parameters
+    {
+        private final int bulkRequests;
+        private final int windowSize;
+
+        Parameters(int bulkRequests, int windowSize)
+        {
+            this.bulkRequests = bulkRequests;
+            this.windowSize = windowSize;
+        }
+
+        int getBulkRequests()
+        {
+            return bulkRequests;
+        }
+
+        int getWindowSize()
+        {
+            return windowSize;
+        }
+    }
+
+    // window is twice the bandwidth-delay product so that window adjusts never stall the stream
+    static Parameters compute(double rttMillis, double bytesPerSecond)
+    {
+        double bdp = bytesPerSecond * rttMillis / 1000.0;
+        long window = Long.highestOneBit(Math.max(1L, (long) (bdp * 2)) - 1) << 1;
+        window = Math.max(DEFAULT_WINDOW_SIZE, Math.min(MAX_WINDOW_SIZE, window));
+        int bulkRequests = (int) Math.max(DEFAULT_BULK_REQUESTS, Math.min(MAX_BULK_REQUESTS, window / DEFAULT_PACKET_SIZE));
+        return new Parameters(bulkRequests, (int) window);
+    }
+
+    static void probe(PluginTask task)
+    {
+        if (task.getFiles().getTaskCount() == 0) {
+            return;
+        }
+        if (task.getSftpBulkRequests().isPresent() && task.getSftpWindowSize().isPresent()) {
+            log.info("Skip auto tuning because both sftp_bulk_requests and sftp_window_size are set");
+            return;
+        }
+
+        final String key = task.getFiles().get(0).get(0);
+        try (SftpFileSystemManager.Session session = SftpFileSystemManager.openSession(SftpFileInput.initializeFsOptions(task))) {
+            FileObject file = session.resolveFile(key);
+
+            long rttNanos = Long.MAX_VALUE;
+            for (int i = 0; i < RTT_SAMPLES; i++) {
+                long start = System.nanoTime();
+                file.refresh();
+                file.getContent().getSize();
+                rttNanos = Math.min(rttNanos, System.nanoTime() - start);
+            }
+            double rttMillis = rttNanos / 1000000.0;
+
+            // probe with the JSch defaults and grow the pipeline only while it is what limits the bandwidth,
+            // so that a slow link is not flooded with requests before its bandwidth is known
+            Parameters probed = new Parameters(DEFAULT_BULK_REQUESTS, DEFAULT_WINDOW_SIZE);
+            double bytesPerSecond = measureBandwidth(file, probed, task.getAutoTuneProbeSize());
+            while (bytesPerSecond > 0 && isPipelineBound(probed, rttMillis, bytesPerSecond) && probed.getBulkRequests() < MAX_BULK_REQUESTS) {
+                log.debug("Probe is bound by {} bulk requests at {} MB/s", probed.getBulkRequests(), String.format("%.2f", bytesPerSecond / 1024 / 1024));
+                probed = grow(probed);
+                bytesPerSecond = measureBandwidth(file, probed, task.getAutoTuneProbeSize());
+            }
+
+            if (bytesPerSecond <= 0) {
+                log.info("Skip auto tuning because the probe file is too small. rtt: {} ms", String.format("%.1f", rttMillis));
+                return;
+            }
+            Parameters params = compute(rttMillis, bytesPerSecond);
+            if (!task.getSftpBulkRequests().isPresent()) {
+                task.setSftpBulkRequests(Optional.of(params.getBulkRequests()));
+            }
+            if (!task.getSftpWindowSize().isPresent()) {
+                task.setSftpWindowSize(Optional.of(params.getWindowSize()));
+            }
+            log.info("Auto tuned SFTP connection. rtt: {} ms, bandwidth: {} MB/s, bdp: {} KB, sftp_window_size: {} KB, sftp_bulk_requests: {}, max packet: {} KB",
+                    String.format("%.1f", rttMillis), String.format("%.2f", bytesPerSecond / 1024 / 1024),
+                    (long) (bytesPerSecond * rttMillis / 1000 / 1024),
+                    task.getSftpWindowSize().get() / 1024, task.getSftpBulkRequests().get(), DEFAULT_PACKET_SIZE / 1024);
+        }
+        catch (IOException | RuntimeException ex) {
+            log.warn("Auto tuning failed, using default SFTP connection parameters. Message: {}", ex.getMessage());
+        }
+    }
+
+    // a pipeline of bulkRequests packets moves at most that many packets per RTT. The bandwidth measured close to
+    // that limit is the limit of the pipeline rather than of the link.
+    static boolean isPipelineBound(Parameters params, double rttMillis, double bytesPerSecond)
+    {
+        double pipelineBytesPerSecond = (double) params.getBulkRequests() * DEFAULT_PACKET_SIZE * 1000.0 / Math.max(rttMillis, 0.001);
+        return bytesPerSecond >= pipelineBytesPerSecond * PIPELINE_BOUND_RATIO;
+    }
+
+    static Parameters grow(Parameters params)
+    {
+        int bulkRequests = (int) Math.min(MAX_BULK_REQUESTS, (long) params.getBulkRequests() * PROBE_GROWTH);
+        long window = Math.max(params.getWindowSize(), (long) bulkRequests * DEFAULT_PACKET_SIZE);
+        return new Parameters(bulkRequests, (int) Math.min(MAX_WINDOW_SIZE, window));
+    }
+
+    // reads up to probeSize bytes of the file with the parameters. Returns bytes per second after the first
+    // packet, or 0 when the file is too small to measure.
+    private static double measureBandwidth(FileObject file, Parameters params, long probeSize) throws IOException
+    {
+        apply(file, params);
+        long bytes = 0;
+        long firstByteAt = 0;
+        long end;
+        byte[] buffer = new byte[DEFAULT_PACKET_SIZE];
+        try (InputStream in = file.getContent().getInputStream()) {
+            while (bytes < probeSize) {
+                int n = in.read(buffer);
+                if (n < 0) {
+                    break;
+                }
+                if (firstByteAt == 0) {
+                    firstByteAt = System.nanoTime();
+                }
+                else {
+                    bytes += n;
+                }
+            }
+            end = System.nanoTime();
+        }
+        if (bytes < MIN_PROBE_BYTES) {
+            return 0;
+        }
+        return bytes * 1000000000.0 / (end - firstByteAt);
+    }
+
+    static void apply(FileObject file, PluginTask task)
+    {
+        if (task.getSftpBulkRequests().isPresent() || task.getSftpWindowSize().isPresent()) {
+            apply(file, new Parameters(task.getSftpBulkRequests().orElse(DEFAULT_BULK_REQUESTS),
+                    task.getSftpWindowSize().orElse(DEFAULT_WINDOW_SIZE)));
+        }
+    }
+
+    private static void apply(FileObject file, Parameters params)
+    {
+        if (!SftpChannels.isSupported(file)) {
+            return;
+        }
+        try {
+            final Method setWindow = Channel.class.getDeclaredMethod("setLocalWindowSizeMax", int.class);
+            setWindow.setAccessible(true);
+            SftpChannels.withChannel(file, channel -> {
+                channel.setBulkRequests(params.getBulkRequests());
+                setWindow.invoke(channel, params.getWindowSize());
+                return null;
+            });
+        }
+        catch (Exception ex) {
+            log.debug("Could not apply SFTP connection parameters", ex);
+        }
+    }
+}
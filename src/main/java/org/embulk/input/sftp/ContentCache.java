@@ -0,0 +1,312 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.apache.commons.vfs2.FileObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Local copies of remote files, shared by guess, preview and run, which are usually separate JVMs.
+// Entries are keyed by the public URI, the size and the modification time of the remote file, so a changed file misses.
+// A file is downloaded to a temporary file and moved to its entry atomically. Tasks of a JVM which miss the same file
+// wait for one download. Least recently used entries, by modification time of the entry, are evicted to keep the
+// directory under max_size, counting the sizes of the downloads in flight of this JVM, which are reserved before
+// they start. An entry is opened before get returns, under the lock of evict, so an entry which is
+// being read may be deleted but stays readable through the open channel.
+class ContentCache
+{
+    private static final Logger log = LoggerFactory.getLogger(ContentCache.class);
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    private static final ConcurrentMap<Path, ContentCache> caches = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    private final long maxSize;
+    private final ConcurrentMap<String, CompletableFuture<Path>> downloads = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private long reservedBytes = 0;
+
+    ContentCache(Path directory, long maxSize)
+    {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    static Optional<ContentCache> of(PluginTask task)
+    {
+        if (!task.getContentCacheDirectory().isPresent()) {
+            return Optional.empty();
+        }
+        Path directory = Paths.get(task.getContentCacheDirectory().get()).toAbsolutePath();
+        return Optional.of(caches.computeIfAbsent(directory, key -> new ContentCache(key, task.getContentCacheMaxSize())));
+    }
+
+    long getHits()
+    {
+        return hits.get();
+    }
+
+    long getMisses()
+    {
+        return misses.get();
+    }
+
+    long getBytesSaved()
+    {
+        return bytesSaved.get();
+    }
+
+    // returns the local copy of file opened for reading, downloading it through limiter on a miss
+    FileChannel get(FileObject file, BandwidthLimiter limiter) throws IOException
+    {
+        String uri = file.getPublicURIString();
+        long size = file.getContent().getSize();
+        long lastModified = file.getContent().getLastModifiedTime();
+        String name = keyOf(uri, size, lastModified);
+        Path entry = directory.resolve(name);
+
+        FileChannel cached = open(entry, size);
+        if (cached != null) {
+            touch(entry);
+            hit(uri, size);
+            return cached;
+        }
+
+        CompletableFuture<Path> download = new CompletableFuture<>();
+        CompletableFuture<Path> running = downloads.putIfAbsent(name, download);
+        if (running != null) {
+            try {
+                FileChannel downloaded = open(running.get(), size);
+                if (downloaded == null) {
+                    // evicted by another JVM after the download
+                    return get(file, limiter);
+                }
+                hit(uri, size);
+                return downloaded;
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            catch (ExecutionException ex) {
+                // download by the other task failed. Try again by ourselves.
+                return get(file, limiter);
+            }
+        }
+
+        Path temporary = null;
+        boolean reserved = false;
+        try {
+            cached = open(entry, size);
+            if (cached != null) {
+                // another task finished the download after the check above
+                hit(uri, size);
+                download.complete(entry);
+                return cached;
+            }
+            misses.incrementAndGet();
+            Files.createDirectories(directory);
+            reserve(size);
+            reserved = true;
+            temporary = Files.createTempFile(directory, name, TEMPORARY_SUFFIX);
+            try (InputStream in = limiter.limit(file.getContent().getInputStream())) {
+                Files.copy(in, temporary, StandardCopyOption.REPLACE_EXISTING);
+            }
+            try {
+                Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException ex) {
+                Files.move(temporary, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+            log.info("Content cache miss: {} ({} bytes). Cached as {}", uri, size, entry);
+            FileChannel downloaded = open(entry, size);
+            if (downloaded == null) {
+                throw new IOException(String.format("%s was evicted from the content cache as soon as it was cached. content_cache_max_size may be too small", uri));
+            }
+            download.complete(entry);
+            return downloaded;
+        }
+        catch (IOException | RuntimeException ex) {
+            if (temporary != null) {
+                Files.deleteIfExists(temporary);
+            }
+            download.completeExceptionally(ex);
+            throw ex;
+        }
+        finally {
+            if (reserved) {
+                release(size);
+            }
+            downloads.remove(name, download);
+        }
+    }
+
+    // opens the entry under the lock of evict. Returns null if it has been evicted or doesn't have the size.
+    private synchronized FileChannel open(Path entry, long size) throws IOException
+    {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(entry, StandardOpenOption.READ);
+        }
+        catch (NoSuchFileException ex) {
+            return null;
+        }
+        if (channel.size() != size) {
+            channel.close();
+            return null;
+        }
+        return channel;
+    }
+
+    // marks the entry as recently used
+    private static void touch(Path entry)
+    {
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        catch (IOException ex) {
+            log.debug("Could not update the modification time of {}", entry, ex);
+        }
+    }
+
+    private void hit(String uri, long size)
+    {
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(size);
+        log.info("Content cache hit: {} ({} bytes). Hits: {}, misses: {}, bytes saved: {}",
+                uri, size, hits.get(), misses.get(), bytesSaved.get());
+    }
+
+    // evicts entries to make room for incoming bytes besides the downloads in flight, and reserves them. Waits for
+    // the downloads in flight when the entries alone can't make room, unless nothing else is reserved.
+    synchronized void reserve(long incoming) throws IOException
+    {
+        while (!evict(reservedBytes + incoming) && reservedBytes > 0) {
+            try {
+                wait();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        reservedBytes += incoming;
+    }
+
+    synchronized void release(long bytes)
+    {
+        reservedBytes -= bytes;
+        notifyAll();
+    }
+
+    synchronized long getReservedBytes()
+    {
+        return reservedBytes;
+    }
+
+    // deletes least recently used entries until incoming bytes fit. Returns false if they don't fit.
+    private synchronized boolean evict(long incoming) throws IOException
+    {
+        List<Path> entries = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path) && !path.getFileName().toString().endsWith(TEMPORARY_SUFFIX)) {
+                    entries.add(path);
+                    total += Files.size(path);
+                }
+            }
+        }
+        if (total + incoming <= maxSize) {
+            return true;
+        }
+        entries.sort(Comparator.comparing(ContentCache::lastModified));
+        for (Path path : entries) {
+            if (total + incoming <= maxSize) {
+                break;
+            }
+            try {
+                long size = Files.size(path);
+                if (Files.deleteIfExists(path)) {
+                    total -= size;
+                    log.info("Evicted {} ({} bytes) from the content cache", path, size);
+                }
+            }
+            catch (NoSuchFileException ex) {
+                // evicted by another JVM
+            }
+            catch (IOException ex) {
+                // a file which is open can't be deleted on some platforms
+                log.debug("Could not evict {} from the content cache", path, ex);
+            }
+        }
+        return total + incoming <= maxSize;
+    }
+
+    private static FileTime lastModified(Path path)
+    {
+        try {
+            return Files.getLastModifiedTime(path);
+        }
+        catch (IOException ex) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    static String keyOf(String uri, long size, long lastModified)
+    {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((uri + "\n" + size + "\n" + lastModified).getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
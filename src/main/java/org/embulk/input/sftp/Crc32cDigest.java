@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.embulk.input.sftp;
+
+import java.security.MessageDigest;
+
+// CRC-32C (Castagnoli) as a MessageDigest, for java.util.zip.CRC32C which is only in Java 9 or later.
+// Eight bytes are processed at a time with eight tables (slicing-by-8). The digest is the CRC in big endian.
+class Crc32cDigest
+        extends MessageDigest
+{
+    private static final int POLYNOMIAL = 0x82f63b78;
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLES[0][i] = crc;
+        }
+        for (int t = 1; t < 8; t++) {
+            for (int i = 0; i < 256; i++) {
+                TABLES[t][i] = (TABLES[t - 1][i] >>> 8) ^ TABLES[0][TABLES[t - 1][i] & 0xff];
+            }
+        }
+    }
+
+    private int crc = 0xffffffff;
+
+    Crc32cDigest()
+    {
+        super("CRC32C");
+    }
+
+    @Override
+    protected void engineUpdate(byte input)
+    {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ input) & 0xff];
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int length)
+    {
+        int[] t0 = TABLES[0];
+        int[] t1 = TABLES[1];
+        int[] t2 = TABLES[2];
+        int[] t3 = TABLES[3];
+        int[] t4 = TABLES[4];
+        int[] t5 = TABLES[5];
+        int[] t6 = TABLES[6];
+        int[] t7 = TABLES[7];
+        int c = crc;
+        int p = offset;
+        int end = offset + length;
+        while (end - p >= 8) {
+            int low = c ^ ((input[p] & 0xff) | (input[p + 1] & 0xff) << 8 | (input[p + 2] & 0xff) << 16 | (input[p + 3] & 0xff) << 24);
+            int high = (input[p + 4] & 0xff) | (input[p + 5] & 0xff) << 8 | (input[p + 6] & 0xff) << 16 | (input[p + 7] & 0xff) << 24;
+            c = t7[low & 0xff] ^ t6[(low >>> 8) & 0xff] ^ t5[(low >>> 16) & 0xff] ^ t4[low >>> 24]
+                    ^ t3[high & 0xff] ^ t2[(high >>> 8) & 0xff] ^ t1[(high >>> 16) & 0xff] ^ t0[high >>> 24];
+            p += 8;
+        }
+        while (p < end) {
+            c = (c >>> 8) ^ t0[(c ^ input[p++]) & 0xff];
+        }
+        crc = c;
+    }
+
+    @Override
+    protected byte[] engineDigest()
+    {
+        int value = ~crc;
+        engineReset();
+        return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    @Override
+    protected void engineReset()
+    {
+        crc = 0xffffffff;
+    }
+
+    @Override
+    protected int engineGetDigestLength()
+    {
+        return 4;
+    }
+}
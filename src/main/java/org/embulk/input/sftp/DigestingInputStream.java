@@ -0,0 +1,162 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.embulk.input.sftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Optional;
+
+// Computes the digest of the bytes read through it, and compares it with the checksum of the file at the end
+// of the stream, so that a file is verified while it is parsed instead of in another pass.
+// A stream closed before the end, as in preview, is not verified.
+class DigestingInputStream
+        extends FilterInputStream
+{
+    private static final Logger log = LoggerFactory.getLogger(DigestingInputStream.class);
+
+    private final MessageDigest digest;
+    private final Optional<byte[]> expected;
+    private final String path;
+    private long bytes = 0;
+    private boolean ended = false;
+
+    DigestingInputStream(InputStream in, PluginTask.ChecksumAlgorithm algorithm, Optional<byte[]> expected, String path)
+    {
+        super(in);
+        this.digest = newDigest(algorithm);
+        this.expected = expected;
+        this.path = path;
+    }
+
+    static MessageDigest newDigest(PluginTask.ChecksumAlgorithm algorithm)
+    {
+        try {
+            switch (algorithm) {
+                case CRC32C:
+                    return new Crc32cDigest();
+                case SHA256:
+                    return MessageDigest.getInstance("SHA-256");
+                case MD5:
+                    return MessageDigest.getInstance("MD5");
+                default:
+                    throw new IllegalArgumentException(algorithm.toString());
+            }
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // the first word of a checksum file, as sha256sum and md5sum write "<hex>  <file name>"
+    static byte[] parseChecksumFile(String content, PluginTask.ChecksumAlgorithm algorithm) throws IOException
+    {
+        String[] words = content.trim().split("\\s+", 2);
+        String hex = words[0].toLowerCase(Locale.ENGLISH);
+        int length = newDigest(algorithm).getDigestLength();
+        if (hex.length() != length * 2 || !hex.matches("[0-9a-f]+")) {
+            throw new IOException(String.format("Checksum file doesn't start with a %s digest of %d hex digits: '%s'", algorithm, length * 2, words[0]));
+        }
+        byte[] value = new byte[length];
+        for (int i = 0; i < length; i++) {
+            value[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return value;
+    }
+
+    static String toHex(byte[] value)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : value) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        int b = super.read();
+        if (b < 0) {
+            verify();
+        }
+        else {
+            digest.update((byte) b);
+            bytes++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        int n = super.read(b, off, len);
+        if (n < 0) {
+            verify();
+        }
+        else {
+            digest.update(b, off, n);
+            bytes += n;
+        }
+        return n;
+    }
+
+    // skipped bytes are read to compute the digest
+    @Override
+    public long skip(long n) throws IOException
+    {
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (r < 0) {
+                break;
+            }
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+
+    private void verify() throws IOException
+    {
+        if (ended) {
+            return;
+        }
+        ended = true;
+        String actual = toHex(digest.digest());
+        if (!expected.isPresent()) {
+            log.debug("Digest of {} ({} bytes): {}", path, bytes, actual);
+            return;
+        }
+        if (!actual.equals(toHex(expected.get()))) {
+            throw new IOException(String.format("Digest of %s (%d bytes) is %s, but its checksum file has %s. The file may be truncated or corrupt",
+                    path, bytes, actual, toHex(expected.get())));
+        }
+        log.debug("Verified {} ({} bytes): {}", path, bytes, actual);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Appends one JSON line per downloaded file to a local file.
+// Tasks only offer records to a bounded queue. A daemon thread serializes and writes them, and records
+// are dropped rather than blocking the task when the queue is full.
+// Writers are shared by every task in the JVM which writes to the same path.
+class DownloadTraceWriter
+{
+    private static final Logger log = LoggerFactory.getLogger(DownloadTraceWriter.class);
+    private static final int QUEUE_SIZE = 8192;
+    private static final Map<String, DownloadTraceWriter> writers = new HashMap<>();
+
+    private final String path;
+    private final BlockingQueue<Map<String, Object>> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread thread;
+    private int references = 0;
+    private volatile boolean closing = false;
+
+    private DownloadTraceWriter(String path)
+    {
+        this.path = path;
+        this.thread = new Thread(this::run, "embulk-input-sftp-trace");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    static synchronized DownloadTraceWriter open(String path)
+    {
+        DownloadTraceWriter writer = writers.get(path);
+        if (writer == null) {
+            writer = new DownloadTraceWriter(path);
+            writers.put(path, writer);
+        }
+        writer.references++;
+        return writer;
+    }
+
+    void offer(Map<String, Object> record)
+    {
+        if (!queue.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    void release()
+    {
+        synchronized (DownloadTraceWriter.class) {
+            if (--references > 0) {
+                return;
+            }
+            // keep the lock until the file is closed so that a new writer for the same path doesn't interleave
+            writers.remove(path);
+            closing = true;
+            try {
+                thread.join();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (dropped.get() > 0) {
+            log.warn("Dropped {} download trace records because the queue was full", dropped.get());
+        }
+    }
+
+    private void run()
+    {
+        ObjectMapper mapper = new ObjectMapper();
+        try (Writer writer = Files.newBufferedWriter(Paths.get(path), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            while (true) {
+                Map<String, Object> record = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (record == null) {
+                    writer.flush();
+                    if (closing && queue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                writer.write(mapper.writeValueAsString(record));
+                writer.write('\n');
+            }
+        }
+        catch (IOException ex) {
+            log.warn("Failed to write download trace to {}: {}", path, ex.getMessage());
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -18,6 +18,7 @@ package org.embulk.input.sftp;
 
 import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import org.embulk.config.ConfigSource;
 import org.embulk.util.config.Config;
@@ -37,6 +38,7 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.regex.Pattern;
@@ -60,20 +62,41 @@ public class FileList
         @Config("min_task_size")
         @ConfigDefault("0")
         long getMinTaskSize();
+
+        // files larger than this are split into byte ranges of this size, one entry for each
+        @Config("split_file_size")
+        @ConfigDefault("null")
+        Optional<Long> getSplitFileSize();
+        void setSplitFileSize(Optional<Long> splitFileSize);
     }
 
     public static class Entry
     {
+        // size of the files listed by name only, which the task resolves when it opens the file
+        public static final long UNKNOWN_SIZE = -1;
+
         private int index;
         private long size;
+        private Long rangeStart;
+        private Long rangeEnd;
 
+        public Entry(int index, long size)
+        {
+            this(index, size, null, null);
+        }
+
+        // an entry of the byte range [rangeStart, rangeEnd) of the file. size is the length of the range.
         @JsonCreator
         public Entry(
                 @JsonProperty("index") int index,
-                @JsonProperty("size") long size)
+                @JsonProperty("size") long size,
+                @JsonProperty("range_start") Long rangeStart,
+                @JsonProperty("range_end") Long rangeEnd)
         {
             this.index = index;
             this.size = size;
+            this.rangeStart = rangeStart;
+            this.rangeEnd = rangeEnd;
         }
 
         @JsonProperty("index")
@@ -87,19 +110,54 @@ public class FileList
         {
             return size;
         }
+
+        @JsonProperty("range_start")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public Long getRangeStart()
+        {
+            return rangeStart;
+        }
+
+        @JsonProperty("range_end")
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public Long getRangeEnd()
+        {
+            return rangeEnd;
+        }
+
+        @JsonIgnore
+        public boolean isRange()
+        {
+            return rangeStart != null;
+        }
+
+        @JsonIgnore
+        public boolean hasSize()
+        {
+            return size != UNKNOWN_SIZE;
+        }
     }
 
     public static class Builder
     {
+        private static final Pattern COMPRESSED_EXTENSION = Pattern.compile("\\.(gz|bz2|zip|xz|zst|lz4|7z|z)$", Pattern.CASE_INSENSITIVE);
+
         private final Logger log = LoggerFactory.getLogger(FileList.class);
         private final ByteArrayOutputStream binary;
         private final OutputStream stream;
         private final List<Entry> entries = new ArrayList<>();
+        // bucket of each file by the index, grown by doubling as the binary of the paths
+        private int[] nameHashes = new int[0];
+        private int fileCount = 0;
         private String last = null;
 
         private int limitCount = Integer.MAX_VALUE;
         private long minTaskSize = 1;
+        private long splitFileSize = 0;
+        private int filesPerTask = 0;
+        private int nameHashTaskCount = 0;
         private Pattern pathMatchPattern;
+        private String excludedSuffix = null;
 
         private final ByteBuffer castBuffer = ByteBuffer.allocate(4);
 
@@ -109,6 +167,7 @@ public class FileList
             this.pathMatchPattern = Pattern.compile(task.getPathMatchPattern());
             this.limitCount = task.getTotalFileCountLimit();
             this.minTaskSize = task.getMinTaskSize();
+            this.splitFileSize = task.getSplitFileSize().orElse(0L);
         }
 
         public Builder(ConfigSource config)
@@ -117,6 +176,7 @@ public class FileList
             this.pathMatchPattern = Pattern.compile(config.get(String.class, "path_match_pattern", ".*"));
             this.limitCount = config.get(int.class, "total_file_count_limit", Integer.MAX_VALUE);
             this.minTaskSize = config.get(long.class, "min_task_size", 0L);
+            this.splitFileSize = config.get(long.class, "split_file_size", 0L);
         }
 
         public Builder()
@@ -148,9 +208,38 @@ public class FileList
             return this;
         }
 
+        // drops the files whose path ends with suffix, such as the checksum files next to the input
+        public Builder excludeSuffix(String suffix)
+        {
+            this.excludedSuffix = suffix;
+            return this;
+        }
+
+        // 0 doesn't split files
+        public Builder splitFileSize(long bytes)
+        {
+            this.splitFileSize = bytes;
+            return this;
+        }
+
+        // splits tasks by the number of files instead of min_task_size. 0 doesn't.
+        public Builder filesPerTask(int files)
+        {
+            this.filesPerTask = files;
+            return this;
+        }
+
+        // splits files into the tasks by the hash of the file name instead of min_task_size, so that a file
+        // goes to the same task in every run. 0 doesn't.
+        public Builder nameHashTaskCount(int tasks)
+        {
+            this.nameHashTaskCount = tasks;
+            return this;
+        }
+
         public int size()
         {
-            return entries.size();
+            return fileCount;
         }
 
         public boolean needsMore()
@@ -158,6 +247,15 @@ public class FileList
             return size() < limitCount;
         }
 
+        // true if path passes path_match_pattern and is not excluded
+        public boolean matches(String path)
+        {
+            if (excludedSuffix != null && path.endsWith(excludedSuffix)) {
+                return false;
+            }
+            return pathMatchPattern.matcher(path).find();
+        }
+
         // returns true if this file is used
         public synchronized boolean add(String path, long size)
         {
@@ -167,13 +265,66 @@ public class FileList
                 return false;
             }
 
-            if (!pathMatchPattern.matcher(path).find()) {
+            if (!matches(path)) {
                 return false;
             }
 
-            int index = entries.size();
-            entries.add(new Entry(index, size));
+            int index = fileCount++;
+            if (splitFileSize > 0 && size > splitFileSize && isSplittable(path)) {
+                for (long start = 0; start < size; start += splitFileSize) {
+                    long end = Math.min(size, start + splitFileSize);
+                    entries.add(new Entry(index, end - start, start, end));
+                }
+            }
+            else {
+                entries.add(new Entry(index, size));
+            }
+            write(path);
+            return true;
+        }
+
+        // adds the byte range [start, end) of the file as one entry. Returns true if this file is used.
+        public synchronized boolean addRange(String path, long start, long end)
+        {
+            if (!needsMore()) {
+                return false;
+            }
 
+            if (!matches(path)) {
+                return false;
+            }
+
+            entries.add(new Entry(fileCount++, end - start, start, end));
+            write(path);
+            return true;
+        }
+
+        // adds the file without its size, which the task resolves. Returns true if this file is used.
+        public synchronized boolean addName(String path)
+        {
+            if (!needsMore()) {
+                return false;
+            }
+
+            if (!matches(path)) {
+                return false;
+            }
+
+            entries.add(new Entry(fileCount++, Entry.UNKNOWN_SIZE));
+            write(path);
+            return true;
+        }
+
+        private void write(String path)
+        {
+            if (nameHashTaskCount > 0) {
+                String name = path.substring(path.lastIndexOf('/') + 1);
+                int index = fileCount - 1;
+                if (index == nameHashes.length) {
+                    nameHashes = Arrays.copyOf(nameHashes, Math.max(32, nameHashes.length * 2));
+                }
+                nameHashes[index] = Math.floorMod(name.hashCode(), nameHashTaskCount);
+            }
             byte[] data = path.getBytes(StandardCharsets.UTF_8);
             castBuffer.putInt(0, data.length);
             try {
@@ -185,7 +336,12 @@ public class FileList
             }
 
             last = path;
-            return true;
+        }
+
+        // compressed files can't be read from the middle
+        private static boolean isSplittable(String path)
+        {
+            return !COMPRESSED_EXTENSION.matcher(path).find();
         }
 
         public FileList build()
@@ -199,8 +355,14 @@ public class FileList
             return new FileList(binary.toByteArray(), getSplits(entries), Optional.ofNullable(last));
         }
 
-        private List<List<Entry>> getSplits(List<Entry> all)
+        List<List<Entry>> getSplits(List<Entry> all)
         {
+            if (nameHashTaskCount > 0) {
+                return getNameHashSplits(all);
+            }
+            if (filesPerTask > 0) {
+                return getFileCountSplits(all);
+            }
             List<List<Entry>> tasks = new ArrayList<>();
             long currentTaskSize = 0;
             List<Entry> currentTask = new ArrayList<>();
@@ -218,6 +380,34 @@ public class FileList
             }
             return tasks;
         }
+
+        private List<List<Entry>> getFileCountSplits(List<Entry> all)
+        {
+            List<List<Entry>> tasks = new ArrayList<>();
+            for (int i = 0; i < all.size(); i += filesPerTask) {
+                tasks.add(new ArrayList<>(all.subList(i, Math.min(all.size(), i + filesPerTask))));
+            }
+            return tasks;
+        }
+
+        // entries of a task keep the order of the index, so that the task reads the paths sequentially
+        private List<List<Entry>> getNameHashSplits(List<Entry> all)
+        {
+            List<List<Entry>> buckets = new ArrayList<>();
+            for (int i = 0; i < nameHashTaskCount; i++) {
+                buckets.add(new ArrayList<>());
+            }
+            for (Entry entry : all) {
+                buckets.get(nameHashes[entry.getIndex()]).add(entry);
+            }
+            List<List<Entry>> tasks = new ArrayList<>();
+            for (List<Entry> bucket : buckets) {
+                if (!bucket.isEmpty()) {
+                    tasks.add(bucket);
+                }
+            }
+            return tasks;
+        }
     }
 
     private final byte[] data;
@@ -257,6 +447,20 @@ public class FileList
         return new EntryList(data, tasks.get(i));
     }
 
+    // entries of the task i, in the same order as get(i)
+    @JsonIgnore
+    public List<Entry> getEntries(int i)
+    {
+        return tasks.get(i);
+    }
+
+    // paths of the entries of any tasks. Paths are read sequentially when the entries are in the order of the index.
+    @JsonIgnore
+    List<String> getPaths(List<Entry> entries)
+    {
+        return new EntryList(data, entries);
+    }
+
     @JsonProperty("data")
     @Deprecated
     public byte[] getData()
@@ -285,6 +489,7 @@ public class FileList
         private final List<Entry> entries;
         private InputStream stream;
         private int current;
+        private String lastString;
 
         private final ByteBuffer castBuffer = ByteBuffer.allocate(4);
 
@@ -305,6 +510,10 @@ public class FileList
         public synchronized String get(int i)
         {
             Entry e = entries.get(i);
+            if (e.getIndex() == current - 1 && lastString != null) {
+                // ranges of a file share the index
+                return lastString;
+            }
             if (e.getIndex() < current) {
                 // rewind to the head
                 try {
@@ -321,7 +530,8 @@ public class FileList
                 readNext();
             }
             // now current == e.getIndex()
-            return readNextString();
+            lastString = readNextString();
+            return lastString;
         }
 
         @Override
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+// Files of a transaction which tasks pull one by one, largest first, with dynamic_task_assignment.
+// The queue is shared by the tasks in the JVM, so it works only when every task of the transaction runs in
+// the same JVM, as with the local executor. It is dropped when the transaction ends, whether the tasks ran or not.
+class FileQueue
+{
+    private static final ConcurrentMap<String, FileQueue> queues = new ConcurrentHashMap<>();
+
+    private final ConcurrentLinkedQueue<Item> items;
+
+    private FileQueue(FileList files)
+    {
+        List<Item> all = all(files);
+        all.sort(Comparator.comparingLong((Item item) -> item.getEntry().getSize()).reversed());
+        this.items = new ConcurrentLinkedQueue<>(all);
+    }
+
+    static FileQueue of(PluginTask task)
+    {
+        return queues.computeIfAbsent(task.getWorkQueueId().get(), id -> new FileQueue(task.getFiles()));
+    }
+
+    // called by the transaction after its tasks ended
+    static void drop(PluginTask task)
+    {
+        task.getWorkQueueId().ifPresent(queues::remove);
+    }
+
+    // files of every task in the order of the listing
+    static List<Item> all(FileList files)
+    {
+        List<FileList.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < files.getTaskCount(); i++) {
+            entries.addAll(files.getEntries(i));
+        }
+        entries.sort(Comparator.comparingInt(FileList.Entry::getIndex));
+        List<String> paths = files.getPaths(entries);
+        List<Item> all = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            all.add(new Item(paths.get(i), entries.get(i)));
+        }
+        return all;
+    }
+
+    // an item in processed_files of TaskReports: the relative path, and the byte range of a split file
+    static String describe(PluginTask task, Item item)
+    {
+        String path = SftpFileInput.getRelativePath(task, Optional.of(item.getKey()));
+        if (item.getEntry().isRange()) {
+            return path + ":" + item.getEntry().getRangeStart() + "-" + item.getEntry().getRangeEnd();
+        }
+        return path;
+    }
+
+    // files of the task in the static assignment
+    static List<Item> items(FileList files, int taskIndex)
+    {
+        List<String> keys = files.get(taskIndex);
+        List<FileList.Entry> entries = files.getEntries(taskIndex);
+        List<Item> items = new ArrayList<>(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            items.add(new Item(keys.get(i), entries.get(i)));
+        }
+        return items;
+    }
+
+    Iterator<Item> iterator()
+    {
+        return new Iterator<Item>()
+        {
+            private Item next;
+
+            @Override
+            public boolean hasNext()
+            {
+                if (next == null) {
+                    next = items.poll();
+                }
+                return next != null;
+            }
+
+            @Override
+            public Item next()
+            {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Item item = next;
+                next = null;
+                return item;
+            }
+        };
+    }
+
+    static class Item
+    {
+        private final String key;
+        private final FileList.Entry entry;
+
+        Item(String key, FileList.Entry entry)
+        {
+            this.key = key;
+            this.entry = entry;
+        }
+
+        String getKey()
+        {
+            return key;
+        }
+
+        FileList.Entry getEntry()
+        {
+            return entry;
+        }
+    }
+}
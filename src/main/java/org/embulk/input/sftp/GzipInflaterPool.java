@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// The threads which inflate the segments of parallel_gzip, shared by the tasks in this JVM, and the budget of
+// the output which the segments in flight of all the files may hold.
+// A stream waits for the budget only when it holds none of it, so that the streams which hold it keep reading and
+// give it back. A segment whose output outgrows the budget is not inflated in the pool, and the stream inflates
+// the rest of the file by itself, in memory of its own size.
+class GzipInflaterPool
+{
+    private static final ConcurrentMap<Integer, GzipInflaterPool> pools = new ConcurrentHashMap<>();
+
+    private final int threads;
+    private final long maxReservedBytes;
+    private final ThreadPoolExecutor executor;
+    private long reservedBytes = 0;
+
+    GzipInflaterPool(int threads, long maxReservedBytes)
+    {
+        this.threads = threads;
+        this.maxReservedBytes = maxReservedBytes;
+        AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "embulk-input-sftp-gunzip-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // the threads end while no file is decompressed
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    // the output of the segments in flight is bounded to a quarter of the heap
+    static GzipInflaterPool of(PluginTask task)
+    {
+        final int threads = task.getParallelGzipThreads().orElse(Runtime.getRuntime().availableProcessors());
+        return pools.computeIfAbsent(threads, key -> new GzipInflaterPool(key, Runtime.getRuntime().maxMemory() / 4));
+    }
+
+    int getThreads()
+    {
+        return threads;
+    }
+
+    synchronized long getReservedBytes()
+    {
+        return reservedBytes;
+    }
+
+    <T> CompletableFuture<T> submit(Supplier<T> task)
+    {
+        return CompletableFuture.supplyAsync(task, executor);
+    }
+
+    // reserves bytes of output. Waits for the budget if wait is true, and otherwise returns null when the budget
+    // is used up. A reservation is granted regardless of the budget when nothing else is reserved.
+    synchronized Reservation reserve(long bytes, boolean wait) throws InterruptedException
+    {
+        while (reservedBytes > 0 && reservedBytes + bytes > maxReservedBytes) {
+            if (!wait) {
+                return null;
+            }
+            wait();
+        }
+        reservedBytes += bytes;
+        return new Reservation(bytes);
+    }
+
+    // the output reserved for a segment. It is grown by the thread which inflates the segment, and released
+    // by the stream after the thread is done with it.
+    final class Reservation
+    {
+        private long bytes;
+
+        private Reservation(long bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        // reserves up to size bytes without waiting. Returns false when the budget is used up.
+        boolean growTo(long size)
+        {
+            synchronized (GzipInflaterPool.this) {
+                if (size <= bytes) {
+                    return true;
+                }
+                long extra = size - bytes;
+                if (reservedBytes > bytes && reservedBytes + extra > maxReservedBytes) {
+                    return false;
+                }
+                reservedBytes += extra;
+                bytes = size;
+                return true;
+            }
+        }
+
+        void release()
+        {
+            synchronized (GzipInflaterPool.this) {
+                reservedBytes -= bytes;
+                bytes = 0;
+                GzipInflaterPool.this.notifyAll();
+            }
+        }
+    }
+}
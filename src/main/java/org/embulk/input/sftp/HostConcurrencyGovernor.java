@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import com.jcraft.jsch.JSchException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.net.SocketException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+// Limits the number of concurrent SSH sessions and channels to a host from all tasks of the JVM.
+// A task reads its files through one session and one channel at a time, which its session permit covers.
+// The concurrent range requests of spool open more channels on the session, and take a permit for each of them
+// without waiting, so that a task which holds a session never waits for the others.
+// The limit follows AIMD: it is halved when a handshake is rejected while other sessions are open, which usually
+// means MaxStartups or MaxSessions of the server, and it grows by one after a limit's worth of successful handshakes.
+class HostConcurrencyGovernor
+{
+    private static final Logger log = LoggerFactory.getLogger(HostConcurrencyGovernor.class);
+
+    static final HostConcurrencyGovernor UNLIMITED = new HostConcurrencyGovernor("unlimited", 0);
+
+    // rejections of the sessions which were started together lower the limit only once
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private static final ConcurrentMap<String, HostConcurrencyGovernor> governors = new ConcurrentHashMap<>();
+
+    private final String host;
+    private final int maxLimit;
+    private int limit;
+    private int inFlight = 0;
+    private int successes = 0;
+    private long lastDecreaseAt;
+
+    // maxLimit <= 0 means unlimited
+    HostConcurrencyGovernor(String host, int maxLimit)
+    {
+        this.host = host;
+        this.maxLimit = maxLimit;
+        this.limit = maxLimit;
+        this.lastDecreaseAt = System.nanoTime() - DECREASE_INTERVAL_NANOS;
+    }
+
+    static HostConcurrencyGovernor of(PluginTask task)
+    {
+        if (!task.getMaxSessionsPerHost().isPresent()) {
+            return UNLIMITED;
+        }
+        final String host = task.getHost() + ":" + task.getPort();
+        return governors.computeIfAbsent(host, key -> new HostConcurrencyGovernor(key, task.getMaxSessionsPerHost().get()));
+    }
+
+    boolean isUnlimited()
+    {
+        return maxLimit <= 0;
+    }
+
+    synchronized int getLimit()
+    {
+        return limit;
+    }
+
+    // waits until a session can be opened
+    void acquire() throws InterruptedException
+    {
+        if (isUnlimited()) {
+            return;
+        }
+        synchronized (this) {
+            while (inFlight >= limit) {
+                wait();
+            }
+            inFlight++;
+        }
+    }
+
+    void release()
+    {
+        release(1);
+    }
+
+    // takes up to permits permits for the channels on a session which the caller holds, without waiting.
+    // Returns the number of the permits taken.
+    int tryAcquire(int permits)
+    {
+        if (isUnlimited()) {
+            return permits;
+        }
+        synchronized (this) {
+            int acquired = Math.max(0, Math.min(permits, limit - inFlight));
+            inFlight += acquired;
+            return acquired;
+        }
+    }
+
+    void release(int permits)
+    {
+        if (isUnlimited() || permits == 0) {
+            return;
+        }
+        synchronized (this) {
+            inFlight -= permits;
+            notifyAll();
+        }
+    }
+
+    // called after a successful handshake. The permit is kept until release().
+    void onSuccess()
+    {
+        if (isUnlimited()) {
+            return;
+        }
+        synchronized (this) {
+            if (++successes >= limit && limit < maxLimit) {
+                successes = 0;
+                limit++;
+                notifyAll();
+            }
+        }
+    }
+
+    // called after a rejected handshake, with the permit already released.
+    // Returns true if the caller should wait for a permit and try again, or false if no other session is open,
+    // in which case the rejection is not caused by concurrency and the caller should back off as usual.
+    boolean onRejected()
+    {
+        if (isUnlimited()) {
+            return false;
+        }
+        synchronized (this) {
+            successes = 0;
+            if (inFlight == 0) {
+                return false;
+            }
+            long now = System.nanoTime();
+            if (now - lastDecreaseAt >= DECREASE_INTERVAL_NANOS) {
+                lastDecreaseAt = now;
+                int lowered = Math.max(1, Math.min(limit, inFlight + 1) / 2);
+                if (lowered < limit) {
+                    log.info("SFTP handshake to {} was rejected with {} sessions open. Lowering the session limit from {} to {}",
+                            host, inFlight, limit, lowered);
+                    limit = lowered;
+                }
+            }
+            return true;
+        }
+    }
+
+    // connection resets and closes during the handshake, as opposed to authentication or configuration errors
+    static boolean isHandshakeRejection(Throwable exception)
+    {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            String message = cause.getMessage();
+            if (message != null && (message.contains("Auth fail") || message.contains("Connection refused"))) {
+                return false;
+            }
+            if (cause instanceof SocketException || cause instanceof EOFException) {
+                return true;
+            }
+            if (cause instanceof JSchException && message != null
+                    && (message.contains("closed by foreign host") || message.contains("Connection reset"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import java.util.Optional;
+
+// Decides which of the listed files are loaded in the incremental modes which keep state of each file,
+// instead of skipping the files before last_path.
+interface IncrementalListing
+{
+    // adds the part of file which was not loaded yet to builder. Returns true if it was added.
+    boolean add(FileList.Builder builder, ListedFile file);
+
+    // sets the state after this run to task, for the ConfigDiff
+    void finish(PluginTask task);
+
+    static Optional<IncrementalListing> of(PluginTask task)
+    {
+        switch (task.getIncrementalMode()) {
+            case TAIL:
+                return Optional.of(new TailListing(task));
+            case MANIFEST:
+                return Optional.of(new ManifestListing(task));
+            default:
+                return Optional.empty();
+        }
+    }
+}
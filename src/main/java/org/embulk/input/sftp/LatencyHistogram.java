@@ -0,0 +1,136 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed power-of-two buckets in microseconds. record() does not allocate and is safe to call from any thread.
+class LatencyHistogram
+        implements LatencyHistogramMXBean
+{
+    static final int BUCKETS = 40;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sumMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    void record(long nanos)
+    {
+        long micros = nanos / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts.incrementAndGet(bucket);
+        sumMicros.addAndGet(micros);
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    @Override
+    public long getCount()
+    {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    @Override
+    public long getMeanMicros()
+    {
+        long count = getCount();
+        return count == 0 ? 0 : sumMicros.get() / count;
+    }
+
+    @Override
+    public long getMaxMicros()
+    {
+        return maxMicros.get();
+    }
+
+    @Override
+    public long getP50Micros()
+    {
+        return percentileMicros(50);
+    }
+
+    @Override
+    public long getP99Micros()
+    {
+        return percentileMicros(99);
+    }
+
+    @Override
+    public long[] getBucketCounts()
+    {
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    // upper bound of the bucket which contains the percentile
+    long percentileMicros(int p)
+    {
+        long[] snapshot = getBucketCounts();
+        long count = 0;
+        for (long c : snapshot) {
+            count += c;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(p / 100.0 * count);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += snapshot[i];
+            if (cumulative >= rank) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+
+    Map<String, Object> toMap()
+    {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("count", getCount());
+        map.put("mean_micros", getMeanMicros());
+        map.put("max_micros", getMaxMicros());
+        map.put("p50_micros", getP50Micros());
+        map.put("p99_micros", getP99Micros());
+        List<Map<String, Long>> buckets = new ArrayList<>();
+        long[] snapshot = getBucketCounts();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (snapshot[i] > 0) {
+                Map<String, Long> bucket = new LinkedHashMap<>();
+                bucket.put("lt_micros", 1L << i);
+                bucket.put("count", snapshot[i]);
+                buckets.add(bucket);
+            }
+        }
+        map.put("buckets", buckets);
+        return map;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Reads the lines which start in the byte range [start, end) of a file.
+// A line belongs to the range in which its first byte is, so the ranges of a file together read
+// every line exactly once. The range skips the line which started before start, and reads past end
+// to finish its last line.
+// The underlying stream must be positioned at start - 1, or at 0 when start is 0, to see whether start is a line head.
+class LineRangeInputStream
+        extends FilterInputStream
+{
+    private final long start;
+    private final long end;
+    private long position;
+    private boolean aligned;
+    private boolean lineHead = true;
+    private boolean done = false;
+
+    LineRangeInputStream(InputStream in, long start, long end)
+    {
+        super(in);
+        this.start = start;
+        this.end = end;
+        this.position = seekPosition(start);
+        this.aligned = start == 0;
+    }
+
+    // position of the underlying stream for a range starting at start
+    static long seekPosition(long start)
+    {
+        return start == 0 ? 0 : start - 1;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        if (!aligned && !align()) {
+            done = true;
+        }
+        if (done || (position >= end && lineHead)) {
+            done = true;
+            return -1;
+        }
+
+        int n = in.read(b, off, len);
+        if (n < 0) {
+            done = true;
+            return -1;
+        }
+        // bytes before end - 1 are always in the range. From end - 1 on, the range ends after the first newline.
+        int from = (int) Math.max(0, Math.min(n, end - 1 - position));
+        for (int i = from; i < n; i++) {
+            if (b[off + i] == '\n') {
+                position += i + 1;
+                lineHead = true;
+                done = true;
+                return i + 1;
+            }
+        }
+        position += n;
+        lineHead = b[off + n - 1] == '\n';
+        return n;
+    }
+
+    // skips to the head of the first line which starts at or after start. Returns false at the end of the file.
+    private boolean align() throws IOException
+    {
+        int c;
+        while ((c = in.read()) >= 0) {
+            position++;
+            if (c == '\n') {
+                aligned = true;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        byte[] buffer = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int r = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (r < 0) {
+                break;
+            }
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return 0;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+
+import java.util.Comparator;
+
+// A file found by the listing, with the attributes which the listing uses. The listing keeps these instead of
+// FileObjects, which hold their attributes, name objects and file system, until the whole directory is added.
+class ListedFile
+{
+    // the order of FileObject.compareTo, which the listing used to sort files
+    static final Comparator<ListedFile> ORDER = Comparator.comparing(ListedFile::getKey, String.CASE_INSENSITIVE_ORDER);
+
+    private final String key;
+    private final long size;
+    private final long lastModifiedTime;
+
+    ListedFile(String key, long size, long lastModifiedTime)
+    {
+        this.key = key;
+        this.size = size;
+        this.lastModifiedTime = lastModifiedTime;
+    }
+
+    static ListedFile of(FileObject file) throws FileSystemException
+    {
+        return new ListedFile(file.toString(), file.getContent().getSize(), file.getContent().getLastModifiedTime());
+    }
+
+    // URI of the file, as FileObject.toString()
+    String getKey()
+    {
+        return key;
+    }
+
+    long getSize()
+    {
+        return size;
+    }
+
+    // in milliseconds
+    long getLastModifiedTime()
+    {
+        return lastModifiedTime;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.RandomAccessContent;
+import org.apache.commons.vfs2.util.RandomAccessMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Downloads a byte range of a remote file to a local spool file with concurrent range requests,
+// so that the SFTP session can be closed before parsing starts. Spooled files are read through memory-mapped buffers.
+// The disk usage of all spool files in the JVM is capped, and downloads wait until other tasks delete their files.
+class LocalSpool
+{
+    private static final Logger log = LoggerFactory.getLogger(LocalSpool.class);
+    private static final long MIN_PART_SIZE = 8 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final Object usageLock = new Object();
+    private static long usedBytes = 0;
+
+    private final Path directory;
+    private final long maxDiskUsage;
+    private final int concurrency;
+    private final BandwidthLimiter limiter;
+    private final HostConcurrencyGovernor governor;
+
+    LocalSpool(PluginTask task)
+    {
+        this.directory = Paths.get(task.getSpoolDirectory().orElse(System.getProperty("java.io.tmpdir")));
+        this.maxDiskUsage = task.getSpoolMaxDiskUsage();
+        this.concurrency = Math.max(1, task.getSpoolConcurrency());
+        this.limiter = BandwidthLimiter.of(task);
+        this.governor = HostConcurrencyGovernor.of(task);
+    }
+
+    // downloads [from, to) of file. If finishLine is true, bytes after "to" are also downloaded until the first newline.
+    SpooledFile download(final FileObject file, long from, long to, boolean finishLine) throws IOException
+    {
+        long length = to - from;
+        reserve(length);
+        Path path = null;
+        try {
+            Files.createDirectories(directory);
+            path = Files.createTempFile(directory, "embulk-input-sftp-", ".spool");
+            long spooled;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                downloadParts(file, channel, from, to);
+                spooled = length;
+                if (finishLine) {
+                    spooled += downloadUntilNewline(file, channel, to, length);
+                }
+            }
+            return new SpooledFile(path, spooled, length);
+        }
+        catch (IOException | RuntimeException ex) {
+            if (path != null) {
+                Files.deleteIfExists(path);
+            }
+            release(length);
+            throw ex;
+        }
+    }
+
+    private void downloadParts(final FileObject file, final FileChannel channel, final long from, long to) throws IOException
+    {
+        long length = to - from;
+        long partSize = Math.max(MIN_PART_SIZE, (length + concurrency - 1) / concurrency);
+        if (length <= partSize) {
+            downloadPart(file, channel, from, to, 0);
+            return;
+        }
+
+        // the first channel is covered by the session permit of the task, and the others by permits which are free now
+        final int channels = governor.tryAcquire(concurrency - 1);
+        ExecutorService executor = Executors.newFixedThreadPool(channels + 1, runnable -> {
+            Thread thread = new Thread(runnable, "embulk-input-sftp-spool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Void>> parts = new ArrayList<>();
+            for (long start = from; start < to; start += partSize) {
+                final long partStart = start;
+                final long partEnd = Math.min(to, start + partSize);
+                parts.add(executor.submit(() -> {
+                    downloadPart(file, channel, partStart, partEnd, partStart - from);
+                    return null;
+                }));
+            }
+            for (Future<Void> part : parts) {
+                part.get();
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+            governor.release(channels);
+        }
+    }
+
+    private void downloadPart(FileObject file, FileChannel channel, long start, long end, long position) throws IOException
+    {
+        RandomAccessContent content = file.getContent().getRandomAccessContent(RandomAccessMode.READ);
+        try (InputStream in = limiter.limit(seek(content, start))) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long remaining = end - start;
+            while (remaining > 0) {
+                int n = in.read(buffer.array(), 0, (int) Math.min(buffer.capacity(), remaining));
+                if (n < 0) {
+                    throw new IOException(String.format("Unexpected end of %s at %d", file.getPublicURIString(), end - remaining));
+                }
+                buffer.limit(n);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                buffer.clear();
+                remaining -= n;
+            }
+        }
+        finally {
+            content.close();
+        }
+    }
+
+    private long downloadUntilNewline(FileObject file, FileChannel channel, long from, long position) throws IOException
+    {
+        RandomAccessContent content = file.getContent().getRandomAccessContent(RandomAccessMode.READ);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try (InputStream in = new BufferedInputStream(seek(content, from))) {
+            int c;
+            while ((c = in.read()) >= 0) {
+                line.write(c);
+                if (c == '\n') {
+                    break;
+                }
+            }
+        }
+        finally {
+            content.close();
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(line.toByteArray());
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        return line.size();
+    }
+
+    private static InputStream seek(RandomAccessContent content, long position) throws IOException
+    {
+        if (position >= content.length()) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        content.seek(position);
+        return content.getInputStream();
+    }
+
+    private void reserve(long bytes) throws IOException
+    {
+        if (bytes > maxDiskUsage) {
+            throw new IOException(String.format("%d bytes can't be spooled because spool_max_disk_usage is %d bytes", bytes, maxDiskUsage));
+        }
+        synchronized (usageLock) {
+            boolean logged = false;
+            while (usedBytes + bytes > maxDiskUsage) {
+                if (!logged) {
+                    log.info("Waiting for {} bytes of the spool directory to be freed", bytes);
+                    logged = true;
+                }
+                try {
+                    usageLock.wait();
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            usedBytes += bytes;
+        }
+    }
+
+    private static void release(long bytes)
+    {
+        synchronized (usageLock) {
+            usedBytes -= bytes;
+            usageLock.notifyAll();
+        }
+    }
+
+    static class SpooledFile
+    {
+        private final Path path;
+        private final long length;
+        private final long reserved;
+        private boolean deleted = false;
+
+        private SpooledFile(Path path, long length, long reserved)
+        {
+            this.path = path;
+            this.length = length;
+            this.reserved = reserved;
+        }
+
+        long getLength()
+        {
+            return length;
+        }
+
+        InputStream open() throws IOException
+        {
+            return new MappedInputStream(path, length);
+        }
+
+        void delete()
+        {
+            if (deleted) {
+                return;
+            }
+            deleted = true;
+            try {
+                Files.deleteIfExists(path);
+            }
+            catch (IOException ex) {
+                log.warn("Failed to delete spool file {}: {}", path, ex.getMessage());
+            }
+            release(reserved);
+        }
+    }
+
+    // reads a file through memory-mapped windows, because a single mapping is limited to 2GB
+    private static class MappedInputStream
+            extends InputStream
+    {
+        private static final long WINDOW_SIZE = 256 * 1024 * 1024;
+
+        private final FileChannel channel;
+        private final long length;
+        private long windowStart = 0;
+        private MappedByteBuffer window;
+
+        MappedInputStream(Path path, long length) throws IOException
+        {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.length = length;
+        }
+
+        private boolean ensureWindow() throws IOException
+        {
+            if (window != null && window.hasRemaining()) {
+                return true;
+            }
+            if (window != null) {
+                windowStart += window.capacity();
+            }
+            if (windowStart >= length) {
+                return false;
+            }
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, length - windowStart));
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            if (!ensureWindow()) {
+                return -1;
+            }
+            return window.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            if (len == 0) {
+                return 0;
+            }
+            if (!ensureWindow()) {
+                return -1;
+            }
+            int n = Math.min(len, window.remaining());
+            window.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException
+        {
+            return window == null ? 0 : window.remaining();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            window = null;
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.embulk.config.ConfigException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Set of the loaded files with their size and modification time, carried in the ConfigDiff in manifest mode.
+// Entries are sorted by path. Each path is encoded as the length of the prefix it shares with the previous path
+// and the rest of it, so files in the same directory cost a few bytes each. The whole is gzipped and base64 encoded.
+class Manifest
+{
+    private static final int VERSION = 1;
+
+    static final Manifest EMPTY = new Manifest(new String[0], new long[0], new long[0]);
+
+    private final String[] paths;
+    private final long[] sizes;
+    private final long[] mtimes;
+
+    private Manifest(String[] paths, long[] sizes, long[] mtimes)
+    {
+        this.paths = paths;
+        this.sizes = sizes;
+        this.mtimes = mtimes;
+    }
+
+    int size()
+    {
+        return paths.length;
+    }
+
+    // mtime is in seconds
+    boolean contains(String path, long size, long mtime)
+    {
+        return indexOf(path, size, mtime) >= 0;
+    }
+
+    // index of the entry, or -1 if the file isn't in the manifest with the size and mtime
+    int indexOf(String path, long size, long mtime)
+    {
+        int i = Arrays.binarySearch(paths, path);
+        return i >= 0 && sizes[i] == size && mtimes[i] == mtime ? i : -1;
+    }
+
+    String encode()
+    {
+        return encode(this::forEach);
+    }
+
+    // without the entries of the paths
+    String encodeWithout(Set<String> excluded)
+    {
+        return encode(visitor -> forEach((path, size, mtime) -> {
+            if (!excluded.contains(path)) {
+                visitor.visit(path, size, mtime);
+            }
+        }));
+    }
+
+    // the entries at the indexes in kept which were modified at or after modifiedSince in seconds, and the added
+    // entries in place of the entries of the same paths. Both are sorted by path, so they are merged into the encoder
+    // without a map of the whole manifest.
+    String merge(long modifiedSince, BitSet kept, Builder added)
+    {
+        List<Entry> sorted = added.sorted();
+        return encode(visitor -> {
+            int i = 0;
+            int j = 0;
+            while (i < paths.length || j < sorted.size()) {
+                if (j == sorted.size() || (i < paths.length && paths[i].compareTo(sorted.get(j).path) < 0)) {
+                    if (kept.get(i) && mtimes[i] >= modifiedSince) {
+                        visitor.visit(paths[i], sizes[i], mtimes[i]);
+                    }
+                    i++;
+                }
+                else {
+                    Entry entry = sorted.get(j++);
+                    if (i < paths.length && paths[i].equals(entry.path)) {
+                        i++;
+                    }
+                    visitor.visit(entry.path, entry.size, entry.mtime);
+                }
+            }
+        });
+    }
+
+    private void forEach(Visitor visitor) throws IOException
+    {
+        for (int i = 0; i < paths.length; i++) {
+            visitor.visit(paths[i], sizes[i], mtimes[i]);
+        }
+    }
+
+    // entries are visited twice, to count them and to write them
+    private static String encode(Entries entries)
+    {
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        try (OutputStream out = new BufferedOutputStream(new GZIPOutputStream(binary))) {
+            long[] count = {0};
+            entries.forEach((path, size, mtime) -> count[0]++);
+            writeVarLong(out, VERSION);
+            writeVarLong(out, count[0]);
+            byte[][] previous = {new byte[0]};
+            entries.forEach((path, size, mtime) -> {
+                byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+                int shared = sharedPrefixLength(previous[0], bytes);
+                writeVarLong(out, shared);
+                writeVarLong(out, bytes.length - shared);
+                out.write(bytes, shared, bytes.length - shared);
+                writeVarLong(out, size);
+                writeVarLong(out, mtime);
+                previous[0] = bytes;
+            });
+        }
+        catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        return Base64.getEncoder().encodeToString(binary.toByteArray());
+    }
+
+    private interface Visitor
+    {
+        void visit(String path, long size, long mtime) throws IOException;
+    }
+
+    private interface Entries
+    {
+        void forEach(Visitor visitor) throws IOException;
+    }
+
+    static Manifest decode(String encoded)
+    {
+        try (InputStream in = new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(encoded))))) {
+            long version = readVarLong(in);
+            if (version != VERSION) {
+                throw new ConfigException(String.format("Unsupported manifest version %d", version));
+            }
+            int count = (int) readVarLong(in);
+            String[] paths = new String[count];
+            long[] sizes = new long[count];
+            long[] mtimes = new long[count];
+            byte[] previous = new byte[0];
+            for (int i = 0; i < count; i++) {
+                int shared = (int) readVarLong(in);
+                int rest = (int) readVarLong(in);
+                byte[] path = Arrays.copyOf(previous, shared + rest);
+                readFully(in, path, shared, rest);
+                paths[i] = new String(path, StandardCharsets.UTF_8);
+                sizes[i] = readVarLong(in);
+                mtimes[i] = readVarLong(in);
+                previous = path;
+            }
+            return new Manifest(paths, sizes, mtimes);
+        }
+        catch (IOException | IllegalArgumentException ex) {
+            throw new ConfigException("Failed to decode manifest", ex);
+        }
+    }
+
+    static class Builder
+    {
+        private final List<Entry> entries = new ArrayList<>();
+
+        // replaces the entry of the same path
+        Builder add(String path, long size, long mtime)
+        {
+            entries.add(new Entry(path, size, mtime));
+            return this;
+        }
+
+        Manifest build()
+        {
+            List<Entry> sorted = sorted();
+            String[] paths = new String[sorted.size()];
+            long[] sizes = new long[sorted.size()];
+            long[] mtimes = new long[sorted.size()];
+            for (int i = 0; i < sorted.size(); i++) {
+                paths[i] = sorted.get(i).path;
+                sizes[i] = sorted.get(i).size;
+                mtimes[i] = sorted.get(i).mtime;
+            }
+            return new Manifest(paths, sizes, mtimes);
+        }
+
+        // sorted by path, with the last added entry of each path
+        private List<Entry> sorted()
+        {
+            // the sort is stable, so the last entry of a path is the last in its run
+            entries.sort(Comparator.comparing((Entry entry) -> entry.path));
+            List<Entry> sorted = new ArrayList<>(entries.size());
+            for (int i = 0; i < entries.size(); i++) {
+                if (i + 1 < entries.size() && entries.get(i + 1).path.equals(entries.get(i).path)) {
+                    continue;
+                }
+                sorted.add(entries.get(i));
+            }
+            return sorted;
+        }
+    }
+
+    private static class Entry
+    {
+        private final String path;
+        private final long size;
+        private final long mtime;
+
+        Entry(String path, long size, long mtime)
+        {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    private static int sharedPrefixLength(byte[] a, byte[] b)
+    {
+        int n = Math.min(a.length, b.length);
+        int i = 0;
+        while (i < n && a[i] == b[i]) {
+            i++;
+        }
+        return i;
+    }
+
+    private static void writeVarLong(OutputStream out, long value) throws IOException
+    {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(InputStream in) throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    private static void readFully(InputStream in, byte[] b, int off, int len) throws IOException
+    {
+        while (len > 0) {
+            int n = in.read(b, off, len);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            off += n;
+            len -= n;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.BitSet;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+// Lists the files which are not in the manifest of the last run, in manifest mode. A file is loaded again
+// when its size or modification time changes. Files which are not listed any more are dropped from the manifest.
+// With manifest_retention_days, files modified earlier are neither loaded nor kept in the manifest.
+class ManifestListing
+        implements IncrementalListing
+{
+    private static final Logger log = LoggerFactory.getLogger(ManifestListing.class);
+
+    private final PluginTask task;
+    private final Manifest manifest;
+    // files listed in this run, which are merged with the manifest of the last run
+    private final Manifest.Builder listed = new Manifest.Builder();
+    // entries of the manifest of the last run whose files are listed unchanged in this run
+    private final BitSet unchanged = new BitSet();
+    private final long modifiedSince;
+    private int loaded = 0;
+
+    ManifestListing(PluginTask task)
+    {
+        this.task = task;
+        this.manifest = task.getManifest().map(Manifest::decode).orElse(Manifest.EMPTY);
+        if (task.getManifestRetentionDays().isPresent()) {
+            this.modifiedSince = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis())
+                    - TimeUnit.DAYS.toSeconds(task.getManifestRetentionDays().get());
+        }
+        else {
+            this.modifiedSince = Long.MIN_VALUE;
+        }
+    }
+
+    @Override
+    public boolean add(FileList.Builder builder, ListedFile file)
+    {
+        long mtime = TimeUnit.MILLISECONDS.toSeconds(file.getLastModifiedTime());
+        if (mtime < modifiedSince) {
+            return false;
+        }
+        String fileName = file.getKey();
+        long size = file.getSize();
+        String path = SftpFileInput.getRelativePath(task, Optional.of(fileName));
+        int index = manifest.indexOf(path, size, mtime);
+        if (index >= 0) {
+            unchanged.set(index);
+            loaded++;
+            return false;
+        }
+        if (!builder.add(fileName, size)) {
+            return false;
+        }
+        listed.add(path, size, mtime);
+        return true;
+    }
+
+    @Override
+    public void finish(PluginTask task)
+    {
+        String next = manifest.merge(modifiedSince, unchanged, listed);
+        log.info("Skipped {} files in the manifest. The manifest after this run has {} bytes", loaded, next.length());
+        task.setManifest(Optional.of(next));
+    }
+}
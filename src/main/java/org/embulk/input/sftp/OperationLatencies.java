@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Latency histograms of SFTP operations of one task or of the listing.
+// Every sample is also recorded into the JVM-wide histograms which are registered to JMX
+// as org.embulk.input.sftp:type=LatencyHistogram,operation=<operation>.
+class OperationLatencies
+{
+    private static final Logger log = LoggerFactory.getLogger(OperationLatencies.class);
+
+    enum Operation
+    {
+        // session setup including authentication. commons-vfs2 does both in one resolveFile call.
+        CONNECT,
+        OPEN,
+        READDIR,
+        STAT,
+        // a read call on the file stream. JSch sends the read requests ahead and a call mostly copies the data
+        // which has arrived, so this is not the latency of a request. Long calls are waits for the network.
+        READ_CALL;
+
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+    }
+
+    static final OperationLatencies DISABLED = new OperationLatencies(false, null);
+
+    private static OperationLatencies global;
+
+    private final boolean enabled;
+    private final OperationLatencies parent;
+    private final LatencyHistogram[] histograms;
+
+    private OperationLatencies(boolean enabled, OperationLatencies parent)
+    {
+        this.enabled = enabled;
+        this.parent = parent;
+        this.histograms = new LatencyHistogram[Operation.values().length];
+        if (enabled) {
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    static OperationLatencies of(PluginTask task)
+    {
+        if (!task.getLatencyHistograms()) {
+            return DISABLED;
+        }
+        return new OperationLatencies(true, global());
+    }
+
+    private static synchronized OperationLatencies global()
+    {
+        if (global == null) {
+            global = new OperationLatencies(true, null);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (Operation op : Operation.values()) {
+                try {
+                    server.registerMBean(global.histograms[op.ordinal()],
+                            new ObjectName("org.embulk.input.sftp:type=LatencyHistogram,operation=" + op));
+                }
+                catch (JMException ex) {
+                    log.warn("Failed to register latency histogram of {} to JMX: {}", op, ex.getMessage());
+                }
+            }
+        }
+        return global;
+    }
+
+    boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    void record(Operation op, long nanos)
+    {
+        if (!enabled) {
+            return;
+        }
+        histograms[op.ordinal()].record(nanos);
+        if (parent != null) {
+            parent.record(op, nanos);
+        }
+    }
+
+    LatencyHistogram get(Operation op)
+    {
+        return histograms[op.ordinal()];
+    }
+
+    void writeTo(File file)
+    {
+        if (!enabled) {
+            return;
+        }
+        Map<String, Object> operations = new LinkedHashMap<>();
+        for (Operation op : Operation.values()) {
+            operations.put(op.toString(), histograms[op.ordinal()].toMap());
+        }
+        try {
+            new ObjectMapper().writeValue(file, operations);
+            log.info("Wrote SFTP operation latencies to {}", file);
+        }
+        catch (IOException ex) {
+            log.warn("Failed to write SFTP operation latencies to {}: {}", file, ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+// Decompresses a gzip file of concatenated members, such as files of bgzip or of "cat a.gz b.gz", with GzipInflaterPool.
+// The compressed stream is cut into segments of about SEGMENT_SIZE bytes before bytes which look like the header of a member,
+// and each segment is inflated as a sequence of whole members in the pool. The output of the segments is returned in order.
+// A cut at bytes which only look like a header makes the segments on both sides of it fail, and they are inflated again
+// together. Otherwise, as for a file of one large member, the rest of the file is inflated by GZIPInputStream in this thread.
+// A stream which doesn't start with the magic number of gzip is returned as it is.
+class ParallelGzipInputStream
+        extends InputStream
+{
+    static final int SEGMENT_SIZE = 1024 * 1024;
+    // a member larger than this is inflated by GZIPInputStream
+    static final int MAX_SEGMENT_SIZE = 32 * 1024 * 1024;
+    // the output of a segment larger than this, or than the budget of GzipInflaterPool allows, is inflated by GZIPInputStream
+    static final int MAX_OUTPUT_SIZE = 256 * 1024 * 1024;
+
+    private static final int READ_SIZE = 64 * 1024;
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private static final class Segment
+    {
+        private final byte[] data;
+        private final GzipInflaterPool.Reservation reservation;
+        private final CompletableFuture<Output> output;
+        private volatile boolean discarded = false;
+
+        Segment(byte[] data, GzipInflaterPool.Reservation reservation, GzipInflaterPool pool)
+        {
+            this.data = data;
+            this.reservation = reservation;
+            this.output = pool.submit(() -> discarded ? null : inflateMembers(data, reservation));
+        }
+
+        // gives the reservation back when the pool is done with the segment. A segment which has not started is skipped.
+        void discard()
+        {
+            discarded = true;
+            output.whenComplete((inflated, ex) -> reservation.release());
+        }
+    }
+
+    // ByteArrayOutputStream which hands over its array without a copy
+    private static final class Output
+            extends ByteArrayOutputStream
+    {
+        Output(int size)
+        {
+            super(size);
+        }
+
+        byte[] array()
+        {
+            return buf;
+        }
+
+        // the size of the array after n more bytes are written, as ByteArrayOutputStream grows it
+        long capacityAfter(int n)
+        {
+            if (count + n <= buf.length) {
+                return buf.length;
+            }
+            return Math.max(buf.length * 2L, (long) count + n);
+        }
+    }
+
+    private final InputStream in;
+    private final GzipInflaterPool pool;
+    private final int maxInFlight;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    // a segment cut off before the budget ran out, which is submitted first
+    private byte[] unsubmitted = null;
+
+    // compressed bytes read from in which are not in a segment yet
+    private byte[] pending = new byte[READ_SIZE];
+    private int pendingLength = 0;
+    private int scannedUntil = 0;
+    private boolean inputEnded = false;
+    private boolean segmentTooLarge = false;
+    private boolean started = false;
+
+    private InputStream streaming = null;
+    private Output output = null;
+    private GzipInflaterPool.Reservation outputReservation = null;
+    private int position = 0;
+
+    ParallelGzipInputStream(InputStream in, GzipInflaterPool pool)
+    {
+        this.in = in;
+        this.pool = pool;
+        // one more segment than the threads so that the pool is busy while this thread copies the output of the head
+        this.maxInFlight = pool.getThreads() + 1;
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            if (output != null && position < output.size()) {
+                int n = Math.min(len, output.size() - position);
+                System.arraycopy(output.array(), position, b, off, n);
+                position += n;
+                return n;
+            }
+            if (streaming != null) {
+                int n = streaming.read(b, off, len);
+                if (n < 0) {
+                    drain();
+                }
+                return n;
+            }
+            if (!nextOutput()) {
+                return -1;
+            }
+        }
+    }
+
+    // takes the output of the next segment, or starts streaming. Returns false at the end of the stream.
+    private boolean nextOutput() throws IOException
+    {
+        releaseOutput();
+        if (!started) {
+            started = true;
+            readAtLeast(2);
+            if (pendingLength < 2 || (pending[0] & 0xff) != 0x1f || (pending[1] & 0xff) != 0x8b) {
+                // not gzip
+                streaming = new SequenceInputStream(new ByteArrayInputStream(pending, 0, pendingLength), in);
+                return true;
+            }
+        }
+        submitSegments();
+        Segment head = segments.pollFirst();
+        if (head == null) {
+            if (segmentTooLarge) {
+                streamFrom(Collections.emptyList());
+                return true;
+            }
+            return false;
+        }
+        byte[] data = head.data;
+        GzipInflaterPool.Reservation reservation = head.reservation;
+        Output inflated;
+        try {
+            inflated = await(head);
+        }
+        catch (IOException ex) {
+            reservation.release();
+            throw ex;
+        }
+        if (inflated == null && !segments.isEmpty()) {
+            // the cut between the head and the next segment may not be a member boundary
+            reservation.release();
+            Segment next = segments.pollFirst();
+            next.discard();
+            data = Arrays.copyOf(head.data, head.data.length + next.data.length);
+            System.arraycopy(next.data, 0, data, head.data.length, next.data.length);
+            reservation = reserve(data.length, false);
+            if (reservation != null) {
+                inflated = inflateMembers(data, reservation);
+            }
+        }
+        if (inflated == null) {
+            if (reservation != null) {
+                reservation.release();
+            }
+            streamFrom(Collections.singletonList(data));
+            return true;
+        }
+        output = inflated;
+        outputReservation = reservation;
+        return true;
+    }
+
+    private void releaseOutput()
+    {
+        output = null;
+        position = 0;
+        if (outputReservation != null) {
+            outputReservation.release();
+            outputReservation = null;
+        }
+    }
+
+    // reserves the output of a segment of compressed bytes, which is usually a few times larger
+    private GzipInflaterPool.Reservation reserve(int compressedLength, boolean wait) throws IOException
+    {
+        try {
+            return pool.reserve((long) Math.min(compressedLength, MAX_OUTPUT_SIZE / 4) * 4, wait);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    // GZIPInputStream stops at the trailer of the last member. The rest is read so that the streams below see the end,
+    // as DigestingInputStream verifies the file there.
+    private void drain() throws IOException
+    {
+        while (!inputEnded) {
+            pendingLength = 0;
+            readAtLeast(1);
+        }
+    }
+
+    private Output await(Segment segment) throws IOException
+    {
+        try {
+            return segment.output.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    // inflates the rest of the file in this thread, from the given data which starts at a member boundary
+    private void streamFrom(List<byte[]> first) throws IOException
+    {
+        List<InputStream> rest = new ArrayList<>();
+        for (byte[] data : first) {
+            rest.add(new ByteArrayInputStream(data));
+        }
+        for (Segment segment : segments) {
+            segment.discard();
+            rest.add(new ByteArrayInputStream(segment.data));
+        }
+        segments.clear();
+        if (unsubmitted != null) {
+            rest.add(new ByteArrayInputStream(unsubmitted));
+            unsubmitted = null;
+        }
+        rest.add(new ByteArrayInputStream(pending, 0, pendingLength));
+        rest.add(in);
+        streaming = new GZIPInputStream(new SequenceInputStream(Collections.enumeration(rest)), READ_SIZE);
+    }
+
+    private void submitSegments() throws IOException
+    {
+        while (segments.size() < maxInFlight) {
+            if (unsubmitted == null) {
+                if (segmentTooLarge) {
+                    return;
+                }
+                unsubmitted = nextSegment();
+                if (unsubmitted == null) {
+                    return;
+                }
+            }
+            // waits for the budget only when this stream holds none of it
+            GzipInflaterPool.Reservation reservation = reserve(unsubmitted.length, segments.isEmpty());
+            if (reservation == null) {
+                return;
+            }
+            segments.addLast(new Segment(unsubmitted, reservation, pool));
+            unsubmitted = null;
+        }
+    }
+
+    // cuts the next segment off the compressed bytes. Returns null at the end of the stream, or when no header
+    // is found in MAX_SEGMENT_SIZE bytes.
+    private byte[] nextSegment() throws IOException
+    {
+        while (true) {
+            if (pendingLength >= SEGMENT_SIZE) {
+                int cut = findHeader(pending, Math.max(scannedUntil, SEGMENT_SIZE), pendingLength);
+                if (cut >= 0) {
+                    byte[] data = Arrays.copyOf(pending, cut);
+                    System.arraycopy(pending, cut, pending, 0, pendingLength - cut);
+                    pendingLength -= cut;
+                    scannedUntil = 0;
+                    return data;
+                }
+                scannedUntil = Math.max(pendingLength - HEADER_SIZE + 1, 0);
+                if (pendingLength >= MAX_SEGMENT_SIZE) {
+                    segmentTooLarge = true;
+                    return null;
+                }
+            }
+            if (inputEnded) {
+                if (pendingLength == 0) {
+                    return null;
+                }
+                byte[] data = Arrays.copyOf(pending, pendingLength);
+                pendingLength = 0;
+                return data;
+            }
+            readAtLeast(pendingLength + 1);
+        }
+    }
+
+    private void readAtLeast(int length) throws IOException
+    {
+        while (pendingLength < length && !inputEnded) {
+            if (pending.length - pendingLength < READ_SIZE) {
+                pending = Arrays.copyOf(pending, pending.length * 2);
+            }
+            int n = in.read(pending, pendingLength, pending.length - pendingLength);
+            if (n < 0) {
+                inputEnded = true;
+            }
+            else {
+                pendingLength += n;
+            }
+        }
+    }
+
+    // the position of the first bytes in [from, to) which look like the header of a member, or -1
+    static int findHeader(byte[] data, int from, int to)
+    {
+        for (int i = from; i + HEADER_SIZE <= to; i++) {
+            if (data[i] == (byte) 0x1f && data[i + 1] == (byte) 0x8b && data[i + 2] == 8 && (data[i + 3] & 0xe0) == 0) {
+                int xfl = data[i + 8] & 0xff;
+                int os = data[i + 9] & 0xff;
+                if ((xfl == 0 || xfl == 2 || xfl == 4) && (os <= 13 || os == 255)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // inflates data which consists of whole members into the reserved output. Returns null if it doesn't,
+    // or if the output outgrows the reservation and the budget.
+    static Output inflateMembers(byte[] data, GzipInflaterPool.Reservation reservation)
+    {
+        Output out = new Output(Math.min(data.length, MAX_OUTPUT_SIZE / 4) * 4);
+        Inflater inflater = new Inflater(true);
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[READ_SIZE];
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                int start = skipHeader(data, offset);
+                if (start < 0) {
+                    return null;
+                }
+                inflater.reset();
+                crc.reset();
+                inflater.setInput(data, start, data.length - start);
+                long size = 0;
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(buffer);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        return null;
+                    }
+                    if (!reservation.growTo(out.capacityAfter(n))) {
+                        return null;
+                    }
+                    out.write(buffer, 0, n);
+                    crc.update(buffer, 0, n);
+                    size += n;
+                    if (out.size() > MAX_OUTPUT_SIZE) {
+                        return null;
+                    }
+                }
+                int end = data.length - inflater.getRemaining();
+                if (end + TRAILER_SIZE > data.length
+                        || readInt(data, end) != (int) crc.getValue() || readInt(data, end + 4) != (int) size) {
+                    return null;
+                }
+                offset = end + TRAILER_SIZE;
+            }
+            return out;
+        }
+        catch (DataFormatException ex) {
+            return null;
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    // the position after the header of the member at offset, or -1 if it is not a header
+    private static int skipHeader(byte[] data, int offset)
+    {
+        if (offset + HEADER_SIZE > data.length
+                || data[offset] != (byte) 0x1f || data[offset + 1] != (byte) 0x8b || data[offset + 2] != 8) {
+            return -1;
+        }
+        int flags = data[offset + 3] & 0xff;
+        int p = offset + HEADER_SIZE;
+        if ((flags & FEXTRA) != 0) {
+            if (p + 2 > data.length) {
+                return -1;
+            }
+            p += 2 + ((data[p] & 0xff) | (data[p + 1] & 0xff) << 8);
+        }
+        if ((flags & FNAME) != 0) {
+            p = skipZeroTerminated(data, p);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            p = skipZeroTerminated(data, p);
+        }
+        if ((flags & FHCRC) != 0) {
+            p += 2;
+        }
+        return p <= data.length ? p : -1;
+    }
+
+    private static int skipZeroTerminated(byte[] data, int p)
+    {
+        while (p < data.length && data[p] != 0) {
+            p++;
+        }
+        return p + 1;
+    }
+
+    // little endian
+    private static int readInt(byte[] data, int p)
+    {
+        return (data[p] & 0xff) | (data[p + 1] & 0xff) << 8 | (data[p + 2] & 0xff) << 16 | (data[p + 3] & 0xff) << 24;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        for (Segment segment : segments) {
+            segment.discard();
+        }
+        segments.clear();
+        releaseOutput();
+        try {
+            if (streaming != null) {
+                streaming.close();
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+}
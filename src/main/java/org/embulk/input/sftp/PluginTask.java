@@ -16,11 +16,16 @@
 
 package org.embulk.input.sftp;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import org.embulk.config.ConfigException;
 import org.embulk.util.config.Config;
 import org.embulk.util.config.ConfigDefault;
 import org.embulk.util.config.Task;
 import org.embulk.util.config.units.LocalFile;
 
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 
 public interface PluginTask
@@ -80,6 +85,275 @@ public interface PluginTask
     @ConfigDefault("false")
     boolean getStopWhenFileNotFound();
 
+    @Config("auto_tune")
+    @ConfigDefault("false")
+    boolean getAutoTune();
+
+    @Config("auto_tune_probe_size")
+    @ConfigDefault("8388608") // 8MB
+    long getAutoTuneProbeSize();
+
+    @Config("sftp_bulk_requests")
+    @ConfigDefault("null")
+    Optional<Integer> getSftpBulkRequests();
+    void setSftpBulkRequests(Optional<Integer> sftpBulkRequests);
+
+    @Config("sftp_window_size")
+    @ConfigDefault("null")
+    Optional<Integer> getSftpWindowSize();
+    void setSftpWindowSize(Optional<Integer> sftpWindowSize);
+
+    @Config("latency_histograms")
+    @ConfigDefault("false")
+    boolean getLatencyHistograms();
+
+    @Config("latency_histogram_directory")
+    @ConfigDefault("null")
+    Optional<String> getLatencyHistogramDirectory();
+
+    @Config("trace_log_path")
+    @ConfigDefault("null")
+    Optional<String> getTraceLogPath();
+
+    @Config("max_bandwidth_mbps")
+    @ConfigDefault("null")
+    Optional<Double> getMaxBandwidthMbps();
+
+    @Config("max_sessions_per_host")
+    @ConfigDefault("null")
+    Optional<Integer> getMaxSessionsPerHost();
+
+    // header lines of the file which are prepended to the byte ranges other than the first.
+    // Derived from the parser config when not set.
+    @Config("split_header_lines")
+    @ConfigDefault("null")
+    Optional<Integer> getSplitHeaderLines();
+    void setSplitHeaderLines(Optional<Integer> splitHeaderLines);
+
+    @Config("spool")
+    @ConfigDefault("\"none\"")
+    SpoolMode getSpool();
+
+    @Config("spool_directory")
+    @ConfigDefault("null")
+    Optional<String> getSpoolDirectory();
+
+    @Config("spool_max_disk_usage")
+    @ConfigDefault("10737418240") // 10GB
+    long getSpoolMaxDiskUsage();
+
+    @Config("spool_concurrency")
+    @ConfigDefault("4")
+    int getSpoolConcurrency();
+
+    @Config("content_cache_directory")
+    @ConfigDefault("null")
+    Optional<String> getContentCacheDirectory();
+
+    @Config("content_cache_max_size")
+    @ConfigDefault("10737418240") // 10GB
+    long getContentCacheMaxSize();
+
+    // bytes read from the head of the file in preview and guess. 0 reads the whole file.
+    @Config("preview_sample_size")
+    @ConfigDefault("1048576") // 1MB
+    long getPreviewSampleSize();
+
+    @Config("incremental_mode")
+    @ConfigDefault("\"last_path\"")
+    IncrementalMode getIncrementalMode();
+
+    // offsets of the files read in tail mode, keyed by the path. Set by the ConfigDiff of the last run.
+    @Config("tail_offsets")
+    @ConfigDefault("{}")
+    Map<String, TailOffset> getTailOffsets();
+    void setTailOffsets(Map<String, TailOffset> tailOffsets);
+
+    // the files loaded so far in manifest mode. Set by the ConfigDiff of the last run.
+    @Config("manifest")
+    @ConfigDefault("null")
+    Optional<String> getManifest();
+    void setManifest(Optional<String> manifest);
+
+    @Config("manifest_retention_days")
+    @ConfigDefault("null")
+    Optional<Integer> getManifestRetentionDays();
+
+    // tasks pull files one by one from a queue shared in the JVM, instead of reading the files assigned to them
+    @Config("dynamic_task_assignment")
+    @ConfigDefault("false")
+    boolean getDynamicTaskAssignment();
+
+    // lists file names without their sizes, which each task resolves when it opens the file
+    @Config("name_only_listing")
+    @ConfigDefault("false")
+    boolean getNameOnlyListing();
+
+    @Config("name_only_task_split")
+    @ConfigDefault("\"file_count\"")
+    TaskSplit getNameOnlyTaskSplit();
+
+    @Config("files_per_task")
+    @ConfigDefault("100")
+    int getFilesPerTask();
+
+    // number of tasks of name_hash split. Defaults to the number of processors.
+    @Config("name_hash_task_count")
+    @ConfigDefault("null")
+    Optional<Integer> getNameHashTaskCount();
+
+    // buffers which a reader thread fills ahead of the parser. 0 reads in the thread of the parser.
+    @Config("read_ahead_buffers")
+    @ConfigDefault("0")
+    int getReadAheadBuffers();
+
+    @Config("read_ahead_buffer_size")
+    @ConfigDefault("262144") // 256KB
+    int getReadAheadBufferSize();
+
+    // decompresses gzip files of concatenated members with a pool of threads, instead of the gzip decoder
+    @Config("parallel_gzip")
+    @ConfigDefault("false")
+    boolean getParallelGzip();
+
+    // threads of parallel_gzip shared by the tasks in the JVM. Defaults to the number of processors.
+    @Config("parallel_gzip_threads")
+    @ConfigDefault("null")
+    Optional<Integer> getParallelGzipThreads();
+
+    // digest computed while files are read, and compared with checksum files next to them
+    @Config("checksum")
+    @ConfigDefault("\"none\"")
+    ChecksumAlgorithm getChecksum();
+
+    @Config("checksum_file_required")
+    @ConfigDefault("false")
+    boolean getChecksumFileRequired();
+
     FileList getFiles();
     void setFiles(FileList files);
+
+    // identifies the FileQueue of the transaction with dynamic_task_assignment. Not set without it.
+    @ConfigDefault("null")
+    Optional<String> getWorkQueueId();
+    void setWorkQueueId(Optional<String> workQueueId);
+
+    enum SpoolMode
+    {
+        NONE,
+        LOCAL_DISK;
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        @JsonCreator
+        public static SpoolMode fromString(String value)
+        {
+            switch (value) {
+                case "none":
+                    return NONE;
+                case "local_disk":
+                    return LOCAL_DISK;
+                default:
+                    throw new ConfigException(String.format("Unknown spool '%s'. Supported spools are none, local_disk", value));
+            }
+        }
+    }
+
+    enum ChecksumAlgorithm
+    {
+        NONE,
+        CRC32C,
+        SHA256,
+        MD5;
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        // extension of the checksum file of a file
+        public String getFileExtension()
+        {
+            return "." + toString();
+        }
+
+        @JsonCreator
+        public static ChecksumAlgorithm fromString(String value)
+        {
+            switch (value) {
+                case "none":
+                    return NONE;
+                case "crc32c":
+                    return CRC32C;
+                case "sha256":
+                    return SHA256;
+                case "md5":
+                    return MD5;
+                default:
+                    throw new ConfigException(String.format("Unknown checksum '%s'. Supported checksums are none, crc32c, sha256, md5", value));
+            }
+        }
+    }
+
+    enum TaskSplit
+    {
+        FILE_COUNT,
+        NAME_HASH;
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        @JsonCreator
+        public static TaskSplit fromString(String value)
+        {
+            switch (value) {
+                case "file_count":
+                    return FILE_COUNT;
+                case "name_hash":
+                    return NAME_HASH;
+                default:
+                    throw new ConfigException(String.format("Unknown name_only_task_split '%s'. Supported splits are file_count, name_hash", value));
+            }
+        }
+    }
+
+    enum IncrementalMode
+    {
+        LAST_PATH,
+        TAIL,
+        MANIFEST;
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        @JsonCreator
+        public static IncrementalMode fromString(String value)
+        {
+            switch (value) {
+                case "last_path":
+                    return LAST_PATH;
+                case "tail":
+                    return TAIL;
+                case "manifest":
+                    return MANIFEST;
+                default:
+                    throw new ConfigException(String.format("Unknown incremental_mode '%s'. Supported modes are last_path, tail, manifest", value));
+            }
+        }
+    }
 }
@@ -0,0 +1,311 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Reads the underlying stream in a thread of its own into a ring of buffers, ahead of the thread which parses
+// the data, so that waiting for the network and parsing overlap. The thread and the buffers belong to a Ring,
+// which a task keeps for all of its files.
+// A buffer is handed over when it is full, or earlier when the ring is empty, so that the parser doesn't wait
+// for a whole buffer when the network is slower than the parser.
+// The time the parser waited for an empty ring and the reader waited for a full ring tell which side is the bottleneck.
+// The reader is never interrupted. An interrupted read would leave the SFTP channel half consumed and it would be
+// reused for the next file, so close lets the read in progress finish before it closes the underlying stream.
+class PrefetchInputStream
+        extends InputStream
+{
+    interface Listener
+    {
+        // called at close, in the thread which reads this stream
+        void onClose(long emptyWaitNanos, long fullWaitNanos, long chunks, double occupancySum);
+    }
+
+    private static final class Chunk
+    {
+        private final byte[] buffer;
+        private final int length;
+        private final IOException failure;
+
+        Chunk(byte[] buffer, int length, IOException failure)
+        {
+            this.buffer = buffer;
+            this.length = length;
+            this.failure = failure;
+        }
+    }
+
+    // the reader thread and the buffers, which are reused by the streams of the files read one after another
+    static final class Ring
+            implements AutoCloseable
+    {
+        private final int bufferSize;
+        private final int bufferCount;
+        private final BlockingQueue<byte[]> free;
+        private final ExecutorService reader;
+        // accessed by the reader thread
+        private int allocated = 0;
+
+        Ring(int bufferSize, int bufferCount, String threadName)
+        {
+            this.bufferSize = bufferSize;
+            this.bufferCount = bufferCount;
+            this.free = new ArrayBlockingQueue<>(bufferCount);
+            this.reader = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        // the buffers which were allocated
+        int getAllocatedBuffers()
+        {
+            return allocated;
+        }
+
+        @Override
+        public void close()
+        {
+            reader.shutdown();
+        }
+    }
+
+    private static final Chunk END = new Chunk(new byte[0], 0, null);
+
+    private final InputStream in;
+    private final Ring ring;
+    private final int bufferCount;
+    private final Listener listener;
+    // buffers with data, followed by END or a failure. One more than the buffers so that the reader never waits to put the end.
+    private final BlockingQueue<Chunk> filled;
+    private final BlockingQueue<byte[]> free;
+    private final Future<?> reader;
+    private volatile boolean closed = false;
+
+    // accessed by the reader thread
+    private long fullWaitNanos = 0;
+
+    private Chunk current;
+    private int position;
+    private boolean ended = false;
+    private long emptyWaitNanos = 0;
+    private long chunks = 0;
+    private double occupancySum = 0;
+
+    // the stream of the previous file of the ring must be closed before this is created
+    PrefetchInputStream(InputStream in, Ring ring, Listener listener)
+    {
+        this.in = in;
+        this.ring = ring;
+        this.bufferCount = ring.bufferCount;
+        this.listener = listener;
+        this.filled = new ArrayBlockingQueue<>(bufferCount + 1);
+        this.free = ring.free;
+        this.reader = ring.reader.submit(this::readAhead);
+    }
+
+    private void readAhead()
+    {
+        // the buffer in hand, which goes back to the ring when this ends so that the next file has all of them
+        byte[] buffer = null;
+        try {
+            while (!closed) {
+                buffer = takeFreeBuffer();
+                if (closed) {
+                    return;
+                }
+                int n = 0;
+                boolean eof = false;
+                while (n < buffer.length && !closed) {
+                    int r = in.read(buffer, n, buffer.length - n);
+                    if (r < 0) {
+                        eof = true;
+                        break;
+                    }
+                    n += r;
+                    if (filled.isEmpty()) {
+                        // the parser is waiting
+                        break;
+                    }
+                }
+                if (n > 0) {
+                    filled.put(new Chunk(buffer, n, null));
+                    buffer = null;
+                }
+                if (eof) {
+                    filled.put(END);
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            // closed
+        }
+        catch (IOException | RuntimeException ex) {
+            if (!closed) {
+                IOException failure = ex instanceof IOException ? (IOException) ex : new IOException(ex);
+                filled.offer(new Chunk(null, 0, failure));
+            }
+        }
+        finally {
+            if (buffer != null) {
+                free.offer(buffer);
+            }
+        }
+    }
+
+    private byte[] takeFreeBuffer() throws InterruptedException
+    {
+        byte[] buffer = free.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (ring.allocated < bufferCount) {
+            ring.allocated++;
+            return new byte[ring.bufferSize];
+        }
+        long start = System.nanoTime();
+        try {
+            return free.take();
+        }
+        finally {
+            fullWaitNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if (!fill()) {
+            return -1;
+        }
+        return current.buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current.buffer, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    // takes the next chunk when the current one is consumed. Returns false at the end of the stream.
+    private boolean fill() throws IOException
+    {
+        if (current != null && position < current.length) {
+            return true;
+        }
+        if (current != null) {
+            free.offer(current.buffer);
+            current = null;
+        }
+        if (ended) {
+            return false;
+        }
+
+        int ready = filled.size();
+        occupancySum += (double) Math.min(ready, bufferCount) / bufferCount;
+        chunks++;
+        Chunk next = filled.poll();
+        if (next == null) {
+            long start = System.nanoTime();
+            try {
+                next = filled.take();
+            }
+            catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+            emptyWaitNanos += System.nanoTime() - start;
+        }
+        if (next.failure != null) {
+            ended = true;
+            throw next.failure;
+        }
+        if (next == END) {
+            ended = true;
+            return false;
+        }
+        current = next;
+        position = 0;
+        return true;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return current == null ? 0 : current.length - position;
+    }
+
+    private void releaseFilled()
+    {
+        Chunk chunk;
+        while ((chunk = filled.poll()) != null) {
+            if (chunk != END && chunk.buffer != null) {
+                free.offer(chunk.buffer);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // hands the buffers back so that a reader waiting for a free buffer wakes up and sees closed
+        if (current != null) {
+            free.offer(current.buffer);
+            current = null;
+        }
+        releaseFilled();
+        try {
+            reader.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException ex) {
+            // readAhead hands failures over as chunks
+        }
+        finally {
+            // the buffer which the reader filled while it was closed
+            releaseFilled();
+            in.close();
+        }
+        if (listener != null) {
+            listener.onClose(emptyWaitNanos, fullWaitNanos, chunks, occupancySum);
+        }
+    }
+}
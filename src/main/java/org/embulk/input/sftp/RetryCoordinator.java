@@ -0,0 +1,225 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+import org.embulk.config.ConfigException;
+import org.embulk.util.retryhelper.RetryGiveupException;
+import org.embulk.util.retryhelper.Retryable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Runs Retryables like RetryExecutor, but shares the state of a host among all tasks of the JVM.
+// Waits between retries use decorrelated jitter so that tasks which failed together don't retry together.
+// After FAILURE_THRESHOLD consecutive transient failures of any task the circuit breaker opens. Tasks wait
+// while it is open, then one task probes the host and the others wait for the result of the probe.
+// Permanent errors such as authentication failures or missing files are given up without retrying.
+class RetryCoordinator
+{
+    private static final Logger log = LoggerFactory.getLogger(RetryCoordinator.class);
+
+    static final int FAILURE_THRESHOLD = 5;
+    private static final long INITIAL_WAIT_MILLIS = 500;
+    private static final long MAX_WAIT_MILLIS = 30 * 1000;
+    private static final long INITIAL_OPEN_MILLIS = 5 * 1000;
+    private static final long MAX_OPEN_MILLIS = 60 * 1000;
+
+    private static final ConcurrentMap<String, RetryCoordinator> coordinators = new ConcurrentHashMap<>();
+
+    enum State
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final String host;
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openMillis = INITIAL_OPEN_MILLIS;
+    private long openUntil;
+
+    RetryCoordinator(String host)
+    {
+        this.host = host;
+    }
+
+    static RetryCoordinator of(PluginTask task)
+    {
+        return coordinators.computeIfAbsent(task.getHost() + ":" + task.getPort(), RetryCoordinator::new);
+    }
+
+    synchronized State getState()
+    {
+        return state;
+    }
+
+    <T> T runInterruptible(int retryLimit, Retryable<T> op)
+            throws InterruptedException, RetryGiveupException
+    {
+        long retryWait = INITIAL_WAIT_MILLIS;
+        int retryCount = 0;
+        Exception firstException = null;
+        while (true) {
+            boolean probe = admit();
+            boolean recorded = false;
+            try {
+                T result = op.call();
+                recorded = true;
+                onSuccess();
+                return result;
+            }
+            catch (Exception exception) {
+                if (firstException == null) {
+                    firstException = exception;
+                }
+                boolean permanent = isPermanent(exception);
+                recorded = true;
+                if (permanent) {
+                    // the host answered, so it is healthy
+                    onSuccess();
+                }
+                else {
+                    onFailure(probe);
+                }
+                if (!op.isRetryableException(exception) || permanent || retryCount >= retryLimit) {
+                    op.onGiveup(firstException, exception);
+                    throw new RetryGiveupException(firstException);
+                }
+                retryCount++;
+                retryWait = nextWait(retryWait);
+                op.onRetry(exception, retryCount, retryLimit, (int) retryWait);
+                Thread.sleep(retryWait);
+            }
+            finally {
+                if (probe && !recorded) {
+                    // the probe was interrupted or failed by an Error. Let another task probe.
+                    onFailure(true);
+                }
+            }
+        }
+    }
+
+    // decorrelated jitter: a random wait between the initial wait and 3 times the previous wait
+    static long nextWait(long previousWait)
+    {
+        long upper = Math.max(INITIAL_WAIT_MILLIS + 1, previousWait * 3);
+        return Math.min(MAX_WAIT_MILLIS, ThreadLocalRandom.current().nextLong(INITIAL_WAIT_MILLIS, upper));
+    }
+
+    // waits while the breaker is open or another task is probing. Returns true if the caller is the probe.
+    private synchronized boolean admit() throws InterruptedException
+    {
+        while (true) {
+            switch (state) {
+            case CLOSED:
+                return false;
+            case OPEN:
+                long remaining = TimeUnit.NANOSECONDS.toMillis(openUntil - System.nanoTime());
+                if (remaining <= 0) {
+                    state = State.HALF_OPEN;
+                    log.info("Probing SFTP server {} with one task", host);
+                    return true;
+                }
+                wait(remaining);
+                break;
+            default:
+                wait();
+                break;
+            }
+        }
+    }
+
+    private synchronized void onSuccess()
+    {
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            log.info("SFTP server {} is back. Closing the circuit breaker", host);
+            state = State.CLOSED;
+            openMillis = INITIAL_OPEN_MILLIS;
+            notifyAll();
+        }
+    }
+
+    private synchronized void onFailure(boolean probe)
+    {
+        consecutiveFailures++;
+        if (probe) {
+            openMillis = Math.min(MAX_OPEN_MILLIS, openMillis * 2);
+            open();
+        }
+        else if (state == State.CLOSED && consecutiveFailures >= FAILURE_THRESHOLD) {
+            open();
+        }
+    }
+
+    private void open()
+    {
+        log.warn("SFTP server {} failed {} times in a row. Opening the circuit breaker for {} seconds",
+                host, consecutiveFailures, openMillis / 1000);
+        state = State.OPEN;
+        openUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(openMillis);
+        notifyAll();
+    }
+
+    // errors which retrying can't fix
+    static boolean isPermanent(Throwable exception)
+    {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConfigException || cause instanceof UnknownHostException) {
+                return true;
+            }
+            if (cause instanceof SftpException) {
+                int id = ((SftpException) cause).id;
+                return id == ChannelSftp.SSH_FX_NO_SUCH_FILE
+                        || id == ChannelSftp.SSH_FX_PERMISSION_DENIED
+                        || id == ChannelSftp.SSH_FX_OP_UNSUPPORTED;
+            }
+            if (isAuthenticationFailure(cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // errors of the configuration rather than of the server
+    static boolean isConfigurationError(Throwable exception)
+    {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof UnknownHostException || isAuthenticationFailure(cause)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // JSch reports authentication failures only by the message of JSchException
+    private static boolean isAuthenticationFailure(Throwable cause)
+    {
+        return cause instanceof JSchException && cause.getMessage() != null
+                && (cause.getMessage().startsWith("Auth fail") || cause.getMessage().startsWith("Auth cancel"));
+    }
+}
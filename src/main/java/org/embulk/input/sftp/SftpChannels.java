@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import com.jcraft.jsch.ChannelSftp;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystem;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.provider.UriParser;
+import org.apache.commons.vfs2.provider.sftp.SftpFileSystem;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+// commons-vfs2 does not expose the JSch channel of a file system. This borrows the channel which
+// SftpFileSystem keeps idle between operations, and hands it back afterwards.
+class SftpChannels
+{
+    private SftpChannels()
+    {
+    }
+
+    interface ChannelCallback<T>
+    {
+        T call(ChannelSftp channel) throws Exception;
+    }
+
+    static boolean isSupported(FileObject file)
+    {
+        return file.getFileSystem() instanceof SftpFileSystem;
+    }
+
+    static <T> T withChannel(FileObject file, ChannelCallback<T> callback) throws Exception
+    {
+        FileSystem fs = file.getFileSystem();
+        if (!(fs instanceof SftpFileSystem)) {
+            throw new UnsupportedOperationException("Not an SFTP file system: " + fs.getClass().getName());
+        }
+        Method getChannel = SftpFileSystem.class.getDeclaredMethod("getChannel");
+        Method putChannel = SftpFileSystem.class.getDeclaredMethod("putChannel", ChannelSftp.class);
+        getChannel.setAccessible(true);
+        putChannel.setAccessible(true);
+
+        ChannelSftp channel;
+        try {
+            channel = (ChannelSftp) getChannel.invoke(fs);
+        }
+        catch (InvocationTargetException ex) {
+            throw unwrap(ex);
+        }
+        try {
+            return callback.call(channel);
+        }
+        finally {
+            putChannel.invoke(fs, channel);
+        }
+    }
+
+    // path of file for the channel, which SftpFileSystem resolves against the root of the file system
+    static String channelPath(FileObject file) throws FileSystemException
+    {
+        return UriParser.decode(file.getFileSystem().getRootName().getRelativeName(file.getName()));
+    }
+
+    private static Exception unwrap(InvocationTargetException ex)
+    {
+        Throwable cause = ex.getCause();
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        return ex;
+    }
+}
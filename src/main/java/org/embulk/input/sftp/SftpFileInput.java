@@ -16,10 +16,14 @@
 
 package org.embulk.input.sftp;
 
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.SftpATTRS;
+import com.jcraft.jsch.SftpException;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemException;
 import org.apache.commons.vfs2.FileSystemOptions;
+import org.apache.commons.vfs2.NameScope;
 import org.apache.commons.vfs2.impl.StandardFileSystemManager;
 import org.apache.commons.vfs2.provider.UriParser;
 import org.apache.commons.vfs2.provider.local.GenericFileNameParser;
@@ -31,8 +35,6 @@ import org.embulk.config.TaskReport;
 import org.embulk.spi.Exec;
 import org.embulk.spi.TransactionalFileInput;
 import org.embulk.util.config.units.LocalFile;
-import org.embulk.util.file.InputStreamFileInput;
-import org.embulk.util.retryhelper.RetryExecutor;
 import org.embulk.util.retryhelper.RetryGiveupException;
 import org.embulk.util.retryhelper.Retryable;
 import org.slf4j.Logger;
@@ -40,23 +42,40 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.function.Function;
 import java.util.regex.Pattern;
 
 public class SftpFileInput
-        extends InputStreamFileInput
+        extends BufferFillingFileInput
         implements TransactionalFileInput
 {
     private static final Logger log = LoggerFactory.getLogger(SftpFileInput.class);
     private static boolean isMatchLastKey = false;
+    private final TransferMetrics metrics;
+    private final SingleFileProvider provider;
 
     public SftpFileInput(PluginTask task, int taskIndex)
     {
-        super(Exec.getBufferAllocator(), new SingleFileProvider(task, taskIndex, initializeStandardFileSystemManager(), initializeFsOptions(task)));
+        this(task, taskIndex, new TransferMetrics(taskIndex, OperationLatencies.of(task)));
+    }
+
+    private SftpFileInput(PluginTask task, int taskIndex, TransferMetrics metrics)
+    {
+        this(metrics, new SingleFileProvider(task, taskIndex, SftpFileSystemManager.openSession(initializeFsOptions(task)), metrics));
+    }
+
+    private SftpFileInput(TransferMetrics metrics, SingleFileProvider provider)
+    {
+        super(Exec.getBufferAllocator(), provider);
+        this.metrics = metrics;
+        this.provider = provider;
     }
 
     public void abort()
@@ -65,7 +84,14 @@ public class SftpFileInput
 
     public TaskReport commit()
     {
-        return SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.newTaskReport();
+        TaskReport report = metrics.toTaskReport(SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.newTaskReport());
+        if (!provider.getProcessedFiles().isEmpty()) {
+            report.set("processed_files", provider.getProcessedFiles());
+        }
+        if (!provider.getTailOffsets().isEmpty()) {
+            report.set("tail_offsets", TailOffset.toMaps(provider.getTailOffsets()));
+        }
+        return report;
     }
 
     @Override
@@ -74,7 +100,8 @@ public class SftpFileInput
         super.close();
     }
 
-    private static StandardFileSystemManager initializeStandardFileSystemManager()
+    // a manager with all the providers of commons-vfs2. The plugin uses SftpFileSystemManager, which has only the sftp provider.
+    static StandardFileSystemManager initializeStandardFileSystemManager()
     {
         if (!log.isDebugEnabled()) {
             // TODO: change logging format: org.apache.commons.logging.Log
@@ -208,89 +235,95 @@ public class SftpFileInput
 
     public static FileList listFilesByPrefix(final PluginTask task)
     {
-        final FileList.Builder builder = new FileList.Builder(task);
+        return listFilesByPrefix(task, false);
+    }
+
+    // firstFileOnly stops listing at the first file to be loaded, for preview and guess which read only one file
+    public static FileList listFilesByPrefix(final PluginTask task, final boolean firstFileOnly)
+    {
+        final OperationLatencies latencies = OperationLatencies.of(task);
         int maxConnectionRetry = task.getMaxConnectionRetry();
 
         try {
-            return RetryExecutor.builder()
-                    .withRetryLimit(maxConnectionRetry)
-                    .withInitialRetryWaitMillis(500)
-                    .withMaxRetryWaitMillis(30 * 1000)
-                    .build()
-                    .runInterruptible(new Retryable<FileList>() {
+            return RetryCoordinator.of(task)
+                    .runInterruptible(maxConnectionRetry, new Retryable<FileList>() {
                         @Override
                         public FileList call() throws IOException
                         {
+                            // a new builder for each attempt, so that files added by a failed attempt are not listed twice
+                            final FileList.Builder builder = newFileListBuilder(task);
+                            final Optional<IncrementalListing> listing = IncrementalListing.of(task);
                             String lastKey = null;
                             log.info("Getting to download file list");
-                            StandardFileSystemManager manager = null;
-                            try {
-                                manager = initializeStandardFileSystemManager();
-                                FileSystemOptions fsOptions = initializeFsOptions(task);
-
-                                if (task.getLastPath().isPresent() && !task.getLastPath().get().isEmpty()) {
-                                    final FileObject remotedLastPath = manager.resolveFile(getSftpFileUri(task, task.getLastPath().get()), fsOptions);
-                                    if (remotedLastPath.exists()) {
+                            try (SftpFileSystemManager.Session session = SftpFileSystemManager.openListingSession(initializeFsOptions(task))) {
+                                long start = System.nanoTime();
+                                boolean connected = false;
+                                if (!listing.isPresent() && task.getLastPath().isPresent() && !task.getLastPath().get().isEmpty()) {
+                                    final FileObject remotedLastPath = session.resolveFile(getSftpFileUri(task, task.getLastPath().get()));
+                                    latencies.record(OperationLatencies.Operation.CONNECT, System.nanoTime() - start);
+                                    connected = true;
+                                    start = System.nanoTime();
+                                    boolean exists = remotedLastPath.exists();
+                                    latencies.record(OperationLatencies.Operation.STAT, System.nanoTime() - start);
+                                    if (exists) {
                                         lastKey = remotedLastPath.toString();
                                     }
                                     else {
                                         log.warn("Failed to load last_path due to non-existence in sftp, skip using last_path");
                                     }
+                                    start = System.nanoTime();
                                 }
 
-                                FileObject files = manager.resolveFile(getSftpFileUri(task, task.getPathPrefix()), fsOptions);
+                                FileObject files = session.resolveFile(getSftpFileUri(task, task.getPathPrefix()));
+                                if (!connected) {
+                                    latencies.record(OperationLatencies.Operation.CONNECT, System.nanoTime() - start);
+                                }
 
-                                if (files.isFolder()) {
+                                start = System.nanoTime();
+                                boolean isFolder = files.isFolder();
+                                latencies.record(OperationLatencies.Operation.STAT, System.nanoTime() - start);
+                                if (firstFileOnly) {
+                                    addFirstFileToList(task, builder, files, isFolder, lastKey);
+                                }
+                                else if (isFolder) {
                                     //path_prefix is a folder, we add everything in that folder
-                                    FileObject[] children = files.getChildren();
-                                    Arrays.sort(children);
-                                    for (FileObject f : children) {
-                                        if (f.isFile()) {
-                                            addFileToList(builder, f.toString(), f.getContent().getSize(), "", lastKey);
-                                        }
-                                    }
+                                    start = System.nanoTime();
+                                    List<ListedFile> children = listFiles(files, task.getNameOnlyListing());
+                                    latencies.record(OperationLatencies.Operation.READDIR, System.nanoTime() - start);
+                                    addFilesToList(task, builder, listing, children, "", lastKey);
                                 }
                                 else if (files.isFile()) {
                                     //path_prefix is a file then we just need to add that file
-                                    addFileToList(builder, files.toString(), files.getContent().getSize(), "", lastKey);
+                                    addFileToList(builder, listing, ListedFile.of(files), "", lastKey);
                                 }
                                 else {
                                     // path_prefix is neither file or folder, then we scan the parent folder to file path
                                     // that match the path_prefix basename
-                                    FileObject parent = files.getParent();
-                                    FileObject[] children = parent.getChildren();
-                                    Arrays.sort(children);
-                                    String fileName = FilenameUtils.getName(task.getPathPrefix());
-                                    for (FileObject f : children) {
-                                        if (f.isFile()) {
-                                            addFileToList(builder, f.toString(), f.getContent().getSize(), fileName, lastKey);
-                                        }
-                                    }
+                                    start = System.nanoTime();
+                                    List<ListedFile> children = listFiles(files.getParent(), task.getNameOnlyListing());
+                                    latencies.record(OperationLatencies.Operation.READDIR, System.nanoTime() - start);
+                                    addFilesToList(task, builder, listing, children, FilenameUtils.getName(task.getPathPrefix()), lastKey);
                                 }
                                 FileList fileList = builder.build();
+                                if (listing.isPresent()) {
+                                    listing.get().finish(task);
+                                }
+                                if (task.getLatencyHistogramDirectory().isPresent()) {
+                                    latencies.writeTo(new File(task.getLatencyHistogramDirectory().get(), "sftp-latency-listing.json"));
+                                }
                                 if (task.getStopWhenFileNotFound() && fileList.getTaskCount() == 0) {
                                     throw new ConfigException("No file is found. \"stop_when_file_not_found\" option is \"true\".");
                                 }
 
                                 return fileList;
                             }
-                            finally {
-                                if (manager != null) {
-                                    manager.close();
-                                }
-                            }
                         }
 
                         @Override
                         public boolean isRetryableException(Exception exception)
                         {
-                            if (exception.getCause() != null && exception.getCause().getCause() != null) {
-                                Throwable cause = exception.getCause().getCause();
-                                if (cause.getMessage() != null) {
-                                    if (cause.getMessage().contains("Auth fail") || cause.getMessage().contains("Connection refused")) {
-                                        throw new ConfigException(exception);
-                                    }
-                                }
+                            if (RetryCoordinator.isConfigurationError(exception)) {
+                                throw new ConfigException(exception);
                             }
                             if (exception instanceof ConfigException) {
                                 return false;
@@ -327,8 +360,221 @@ public class SftpFileInput
         }
     }
 
-    private static void addFileToList(FileList.Builder builder, String fileName, long fileSize, String basename, String lastKey)
+    private static FileList.Builder newFileListBuilder(PluginTask task)
+    {
+        FileList.Builder builder = new FileList.Builder(task);
+        if (task.getChecksum() != PluginTask.ChecksumAlgorithm.NONE) {
+            // the checksum files are read with the files they verify
+            builder.excludeSuffix(task.getChecksum().getFileExtension());
+        }
+        if (task.getNameOnlyListing()) {
+            if (task.getNameOnlyTaskSplit() == PluginTask.TaskSplit.NAME_HASH) {
+                builder.nameHashTaskCount(task.getNameHashTaskCount().orElse(Runtime.getRuntime().availableProcessors()));
+            }
+            else {
+                builder.filesPerTask(task.getFilesPerTask());
+            }
+        }
+        return builder;
+    }
+
+    // files in dir, sorted. Entries read through the SFTP channel become ListedFiles as they arrive, so that
+    // FileObjects of all the files, with their attributes, are not held at once. Sizes are not required with
+    // name_only_listing, for servers which return only names in the directory entries.
+    // The entries have the attributes of symbolic links themselves. A link is listed if its target is a regular
+    // file, with the size and the modification time of the target. Links to directories, FIFOs and sockets are not.
+    private static List<ListedFile> listFiles(final FileObject dir, final boolean namesOnly) throws IOException
+    {
+        if (SftpChannels.isSupported(dir)) {
+            final String path = SftpChannels.channelPath(dir);
+            final List<ListedFile> files = new ArrayList<>();
+            final List<String> links = new ArrayList<>();
+            try {
+                SftpChannels.withChannel(dir, channel -> {
+                    channel.ls(path, entry -> {
+                        String name = entry.getFilename();
+                        SftpATTRS attrs = entry.getAttrs();
+                        if (attrs.isLink()) {
+                            // stat while ls reads the directory would mix up the responses on the channel
+                            links.add(name);
+                        }
+                        else if (attrs.isReg()) {
+                            addListedFile(files, dir, name, attrs, namesOnly);
+                        }
+                        return ChannelSftp.LsEntrySelector.CONTINUE;
+                    });
+                    for (String name : links) {
+                        SftpATTRS target = statTarget(channel, childPath(path, name));
+                        if (target != null && target.isReg()) {
+                            addListedFile(files, dir, name, target, namesOnly);
+                        }
+                    }
+                    return null;
+                });
+                files.sort(ListedFile.ORDER);
+                return files;
+            }
+            catch (IOException ex) {
+                throw ex;
+            }
+            catch (Exception ex) {
+                log.debug("Could not list the directory through the SFTP channel, listing all files", ex);
+            }
+        }
+
+        List<ListedFile> files = new ArrayList<>();
+        for (FileObject f : dir.getChildren()) {
+            if (f.isFile()) {
+                files.add(ListedFile.of(f));
+            }
+        }
+        files.sort(ListedFile.ORDER);
+        return files;
+    }
+
+    private static void addListedFile(List<ListedFile> files, FileObject dir, String name, SftpATTRS attrs, boolean namesOnly)
+    {
+        if (!namesOnly && (attrs.getFlags() & SftpATTRS.SSH_FILEXFER_ATTR_SIZE) == 0) {
+            throw new IllegalStateException("The server doesn't return the size in directory entries");
+        }
+        try {
+            files.add(new ListedFile(childUri(dir, name), attrs.getSize(), attrs.getMTime() * 1000L));
+        }
+        catch (FileSystemException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    // attributes of the target of a symbolic link, or null if the link is broken
+    private static SftpATTRS statTarget(ChannelSftp channel, String path) throws SftpException
+    {
+        try {
+            return channel.stat(path);
+        }
+        catch (SftpException ex) {
+            if (ex.id == ChannelSftp.SSH_FX_NO_SUCH_FILE) {
+                return null;
+            }
+            throw ex;
+        }
+    }
+
+    private static String childPath(String dirPath, String name)
+    {
+        return dirPath.endsWith("/") ? dirPath + name : dirPath + "/" + name;
+    }
+
+    // passes files to builder, dropping each of them from the list once it is added
+    private static void addFilesToList(PluginTask task, FileList.Builder builder, Optional<IncrementalListing> listing,
+            List<ListedFile> files, String basename, String lastKey)
+    {
+        for (int i = 0; i < files.size(); i++) {
+            ListedFile file = files.set(i, null);
+            if (task.getNameOnlyListing()) {
+                // sizes are resolved by the tasks
+                if (isListed(file.getKey(), basename, lastKey)) {
+                    builder.addName(file.getKey());
+                }
+            }
+            else {
+                addFileToList(builder, listing, file, basename, lastKey);
+            }
+        }
+    }
+
+    // URI of the child of dir, as FileObject.toString() of the child, without creating the FileObject
+    private static String childUri(FileObject dir, String name) throws FileSystemException
+    {
+        return dir.getFileSystem().getFileSystemManager().resolveName(dir.getName(), UriParser.encode(name), NameScope.CHILD).getURI();
+    }
+
+    // adds the first file which the full listing would load, or any file after lastKey when the order of the
+    // directory is not known. Reads the directory entries only until the file is found.
+    private static void addFirstFileToList(PluginTask task, FileList.Builder builder, FileObject files, boolean isFolder, String lastKey)
+            throws IOException
+    {
+        if (!isFolder && files.isFile()) {
+            if (isAfter(files.toString(), lastKey) && builder.matches(files.toString())) {
+                builder.add(files.toString(), files.getContent().getSize());
+            }
+            return;
+        }
+        FileObject dir = isFolder ? files : files.getParent();
+        String basename = isFolder ? "" : FilenameUtils.getName(task.getPathPrefix());
+        String dirUri = dir.toString().endsWith("/") ? dir.toString() : dir.toString() + "/";
+
+        if (SftpChannels.isSupported(dir)) {
+            final String path = SftpChannels.channelPath(dir);
+            final String[] first = new String[1];
+            final long[] size = new long[1];
+            final List<String> links = new ArrayList<>();
+            try {
+                SftpChannels.withChannel(dir, channel -> {
+                    channel.ls(path, entry -> {
+                        String name = entry.getFilename();
+                        if (!isListed(dirUri + name, basename, lastKey) || !builder.matches(dirUri + name)) {
+                            return ChannelSftp.LsEntrySelector.CONTINUE;
+                        }
+                        if (entry.getAttrs().isReg()) {
+                            first[0] = name;
+                            size[0] = entry.getAttrs().getSize();
+                            return ChannelSftp.LsEntrySelector.BREAK;
+                        }
+                        if (entry.getAttrs().isLink()) {
+                            links.add(name);
+                        }
+                        return ChannelSftp.LsEntrySelector.CONTINUE;
+                    });
+                    // a link is taken only when no regular file is found, as any file after lastKey will do
+                    for (int i = 0; i < links.size() && first[0] == null; i++) {
+                        SftpATTRS target = statTarget(channel, childPath(path, links.get(i)));
+                        if (target != null && target.isReg()) {
+                            first[0] = links.get(i);
+                            size[0] = target.getSize();
+                        }
+                    }
+                    return null;
+                });
+                if (first[0] != null) {
+                    builder.add(childUri(dir, first[0]), size[0]);
+                }
+                return;
+            }
+            catch (IOException ex) {
+                throw ex;
+            }
+            catch (Exception ex) {
+                log.debug("Could not list the directory through the SFTP channel, listing all files", ex);
+            }
+        }
+
+        FileObject[] children = dir.getChildren();
+        Arrays.sort(children);
+        for (FileObject f : children) {
+            if (f.isFile() && isListed(f.toString(), basename, lastKey) && builder.matches(f.toString())) {
+                builder.add(f.toString(), f.getContent().getSize());
+                return;
+            }
+        }
+    }
+
+    private static boolean isListed(String fileName, String basename, String lastKey)
     {
+        if (!basename.isEmpty() && !FilenameUtils.getBaseName(fileName).startsWith(basename)) {
+            return false;
+        }
+        return isAfter(fileName, lastKey);
+    }
+
+    // true if fileName comes after lastKey in the order of the listing, which ignores case as ListedFile.ORDER
+    private static boolean isAfter(String fileName, String lastKey)
+    {
+        return lastKey == null || String.CASE_INSENSITIVE_ORDER.compare(fileName, lastKey) > 0;
+    }
+
+    private static void addFileToList(FileList.Builder builder, Optional<IncrementalListing> listing, ListedFile file, String basename, String lastKey)
+    {
+        String fileName = file.getKey();
         if (!basename.isEmpty()) {
             String remoteBasename = FilenameUtils.getBaseName(fileName);
             if (remoteBasename.startsWith(basename)) {
@@ -338,7 +584,7 @@ public class SftpFileInput
                     }
                     return;
                 }
-                builder.add(fileName, fileSize);
+                addFile(builder, listing, file);
             }
         }
         else {
@@ -348,7 +594,17 @@ public class SftpFileInput
                 }
                 return;
             }
-            builder.add(fileName, fileSize);
+            addFile(builder, listing, file);
+        }
+    }
+
+    private static void addFile(FileList.Builder builder, Optional<IncrementalListing> listing, ListedFile file)
+    {
+        if (listing.isPresent()) {
+            listing.get().add(builder, file);
+        }
+        else {
+            builder.add(file.getKey(), file.getSize());
         }
     }
 
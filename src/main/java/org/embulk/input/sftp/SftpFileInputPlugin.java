@@ -17,31 +17,157 @@
 package org.embulk.input.sftp;
 
 import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskReport;
 import org.embulk.config.TaskSource;
+import org.embulk.spi.Exec;
 import org.embulk.spi.FileInputPlugin;
 import org.embulk.spi.TransactionalFileInput;
 import org.embulk.util.config.ConfigMapper;
 import org.embulk.util.config.ConfigMapperFactory;
 import org.embulk.util.config.TaskMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
 
 public class SftpFileInputPlugin
         implements FileInputPlugin
 {
+    private static final Logger log = LoggerFactory.getLogger(SftpFileInputPlugin.class);
+
     @Override
     public ConfigDiff transaction(ConfigSource config, FileInputPlugin.Control control)
     {
         final ConfigMapper configMapper = CONFIG_MAPPER_FACTORY.createConfigMapper();
         final PluginTask task = configMapper.map(config, PluginTask.class);
         SftpFileInput.validateHost(task);
+        if (task.getIncrementalMode() == PluginTask.IncrementalMode.TAIL) {
+            configureTail(config, task);
+        }
+        if (task.getNameOnlyListing()) {
+            configureNameOnlyListing(task);
+        }
+        if (task.getParallelGzip()) {
+            configureParallelGzip(config, task);
+        }
+        if (task.getSplitFileSize().isPresent()) {
+            configureFileSplits(config, task);
+        }
+        if (task.getChecksum() != PluginTask.ChecksumAlgorithm.NONE) {
+            configureChecksum(task);
+        }
+
+        // preview and guess read only the head of the first file
+        boolean previewSampling = task.getPreviewSampleSize() > 0 && Exec.isPreview();
 
         // list files recursively
-        task.setFiles(SftpFileInput.listFilesByPrefix(task));
+        task.setFiles(SftpFileInput.listFilesByPrefix(task, previewSampling));
+        if (task.getAutoTune() && !previewSampling) {
+            ConnectionTuner.probe(task);
+        }
+        if (task.getDynamicTaskAssignment()) {
+            task.setWorkQueueId(Optional.of(UUID.randomUUID().toString()));
+        }
         // number of processors is same with number of files
-        return resume(task.toTaskSource(), task.getFiles().getTaskCount(), control);
+        return run(task.toTaskSource(), task.getFiles().getTaskCount(), control);
+    }
+
+    // byte ranges work only for plain line-oriented files
+    private static void configureFileSplits(ConfigSource config, PluginTask task)
+    {
+        if (isDecoded(config)) {
+            log.warn("\"split_file_size\" is ignored because files are decoded");
+            task.setSplitFileSize(Optional.empty());
+            return;
+        }
+        configureHeaderLines(config, task);
+    }
+
+    // the tail of a file is read as the byte range after the last offset, with the header lines prepended
+    private static void configureTail(ConfigSource config, PluginTask task)
+    {
+        if (isDecoded(config)) {
+            throw new ConfigException("\"incremental_mode: tail\" can't read the tail of files which are decoded");
+        }
+        if (task.getSplitFileSize().isPresent()) {
+            log.warn("\"split_file_size\" is ignored in tail mode");
+            task.setSplitFileSize(Optional.empty());
+        }
+        if (task.getSpool() != PluginTask.SpoolMode.NONE || task.getContentCacheDirectory().isPresent()) {
+            log.warn("\"spool\" and \"content_cache_directory\" are not used in tail mode");
+        }
+        configureHeaderLines(config, task);
+    }
+
+    // the sizes of files are not known until each task opens them
+    private static void configureNameOnlyListing(PluginTask task)
+    {
+        if (task.getIncrementalMode() != PluginTask.IncrementalMode.LAST_PATH) {
+            throw new ConfigException(String.format("\"name_only_listing\" can't be used with \"incremental_mode: %s\", which needs the sizes of files",
+                    task.getIncrementalMode()));
+        }
+        if (task.getFilesPerTask() < 1) {
+            throw new ConfigException("\"files_per_task\" must be greater than 0");
+        }
+        if (task.getNameHashTaskCount().isPresent() && task.getNameHashTaskCount().get() < 1) {
+            throw new ConfigException("\"name_hash_task_count\" must be greater than 0");
+        }
+        if (task.getSplitFileSize().isPresent()) {
+            log.warn("\"split_file_size\" is ignored with \"name_only_listing\"");
+            task.setSplitFileSize(Optional.empty());
+        }
+        if (task.getMinTaskSize() > 0) {
+            log.warn("\"min_task_size\" is ignored with \"name_only_listing\". Tasks are split by \"name_only_task_split\"");
+        }
+    }
+
+    // the input decompresses files instead of a decoder
+    private static void configureParallelGzip(ConfigSource config, PluginTask task)
+    {
+        if (task.getParallelGzipThreads().isPresent() && task.getParallelGzipThreads().get() < 1) {
+            throw new ConfigException("\"parallel_gzip_threads\" must be greater than 0");
+        }
+        if (hasDecoders(config)) {
+            log.warn("\"parallel_gzip\" is used with \"decoders\". Remove the gzip decoder, or files are decompressed twice");
+        }
+    }
+
+    // files are verified only when they are read from the head to the end
+    private static void configureChecksum(PluginTask task)
+    {
+        if (task.getIncrementalMode() == PluginTask.IncrementalMode.TAIL) {
+            log.warn("\"checksum\" is not verified in tail mode, which reads the tail of files");
+        }
+        else if (task.getSplitFileSize().isPresent()) {
+            log.warn("\"checksum\" is not verified for files split by \"split_file_size\"");
+        }
+    }
+
+    private static boolean isDecoded(ConfigSource config)
+    {
+        return hasDecoders(config) || config.get(boolean.class, "parallel_gzip", false);
+    }
+
+    private static boolean hasDecoders(ConfigSource config)
+    {
+        List<?> decoders = config.get(List.class, "decoders", null);
+        return decoders != null && !decoders.isEmpty();
+    }
+
+    private static void configureHeaderLines(ConfigSource config, PluginTask task)
+    {
+        if (!task.getSplitHeaderLines().isPresent()) {
+            ConfigSource parser = config.getNestedOrGetEmpty("parser");
+            int headerLines = parser.get(int.class, "skip_header_lines", parser.get(boolean.class, "header_line", false) ? 1 : 0);
+            task.setSplitHeaderLines(Optional.of(headerLines));
+        }
     }
 
     @Override
@@ -51,20 +177,121 @@ public class SftpFileInputPlugin
     {
         final TaskMapper taskMapper = CONFIG_MAPPER_FACTORY.createTaskMapper();
         final PluginTask task = taskMapper.map(taskSource, PluginTask.class);
-        String lastPath = null;
-        if (task.getIncremental()) {
-            lastPath = SftpFileInput.getRelativePath(task, task.getFiles().getLastPath(task.getLastPath()));
+        if (task.getDynamicTaskAssignment()) {
+            // the queue would be rebuilt with every file, and the files which the failed tasks pulled are not known
+            throw new ConfigException("A job with \"dynamic_task_assignment\" can't be resumed. Run it again from the start");
+        }
+        return run(taskSource, taskCount, control);
+    }
+
+    private ConfigDiff run(TaskSource taskSource,
+                           int taskCount,
+                           FileInputPlugin.Control control)
+    {
+        final TaskMapper taskMapper = CONFIG_MAPPER_FACTORY.createTaskMapper();
+        final PluginTask task = taskMapper.map(taskSource, PluginTask.class);
+        List<TaskReport> reports;
+        try {
+            reports = control.run(taskSource, taskCount);
+        }
+        finally {
+            FileQueue.drop(task);
+        }
+        TransferMetrics.logSummary(reports);
+
+        Optional<String> lastPath = task.getFiles().getLastPath(task.getLastPath());
+        Optional<String> manifest = task.getManifest();
+        if (task.getDynamicTaskAssignment()) {
+            logProcessedFiles(reports);
+            // the incremental state covers only the files which the tasks reported to have read
+            Set<String> unread = new HashSet<>();
+            lastPath = lastReadPath(task, processedFiles(reports), unread);
+            if (!unread.isEmpty()) {
+                log.warn("{} files listed in this run were not read by any task. They are read in the next run", unread.size());
+                manifest = manifest.map(encoded -> Manifest.decode(encoded).encodeWithout(unread));
+            }
         }
-        control.run(taskSource, taskCount);
 
         ConfigDiff configDiff = CONFIG_MAPPER_FACTORY.newConfigDiff();
-        if (task.getIncremental() && lastPath != null) {
-            configDiff.set("last_path", lastPath);
+        if (task.getIncremental() && task.getIncrementalMode() == PluginTask.IncrementalMode.LAST_PATH) {
+            String relativeLastPath = SftpFileInput.getRelativePath(task, lastPath);
+            if (relativeLastPath != null) {
+                configDiff.set("last_path", relativeLastPath);
+            }
+        }
+        if (task.getIncremental() && task.getIncrementalMode() == PluginTask.IncrementalMode.TAIL) {
+            configDiff.set("tail_offsets", mergeTailOffsets(task.getTailOffsets(), reports));
+        }
+        if (task.getIncremental() && task.getIncrementalMode() == PluginTask.IncrementalMode.MANIFEST && manifest.isPresent()) {
+            configDiff.set("manifest", manifest.get());
         }
 
         return configDiff;
     }
 
+    private static Set<String> processedFiles(List<TaskReport> reports)
+    {
+        Set<String> processed = new HashSet<>();
+        for (TaskReport report : reports) {
+            if (report == null || !report.has("processed_files")) {
+                continue;
+            }
+            for (Object file : report.get(List.class, "processed_files")) {
+                processed.add(file.toString());
+            }
+        }
+        return processed;
+    }
+
+    // the last file in the order of the listing before the first file which no task read, or the last_path of the
+    // last run if no file was read. The relative paths of the files which were not read are added to unread.
+    static Optional<String> lastReadPath(PluginTask task, Set<String> processed, Set<String> unread)
+    {
+        Optional<String> lastPath = task.getLastPath();
+        for (FileQueue.Item item : FileQueue.all(task.getFiles())) {
+            if (processed.contains(FileQueue.describe(task, item))) {
+                if (unread.isEmpty()) {
+                    lastPath = Optional.of(item.getKey());
+                }
+            }
+            else {
+                unread.add(SftpFileInput.getRelativePath(task, Optional.of(item.getKey())));
+            }
+        }
+        return lastPath;
+    }
+
+    private static void logProcessedFiles(List<TaskReport> reports)
+    {
+        int total = 0;
+        int busiest = 0;
+        for (TaskReport report : reports) {
+            if (report == null || !report.has("processed_files")) {
+                continue;
+            }
+            int files = report.get(List.class, "processed_files").size();
+            total += files;
+            busiest = Math.max(busiest, files);
+        }
+        log.info("Tasks pulled {} files from the queue. The busiest task processed {} files", total, busiest);
+    }
+
+    // offsets of the files read by this run over those of the files retained by the listing
+    private static Map<String, Object> mergeTailOffsets(Map<String, TailOffset> retained, List<TaskReport> reports)
+    {
+        Map<String, Object> offsets = TailOffset.toMaps(retained);
+        for (TaskReport report : reports) {
+            if (report == null || !report.has("tail_offsets")) {
+                continue;
+            }
+            TaskReport read = report.getNested("tail_offsets");
+            for (String path : read.getAttributeNames()) {
+                offsets.put(path, TailOffset.fromDataSource(read.getNested(path)).toMap());
+            }
+        }
+        return offsets;
+    }
+
     @Override
     public void cleanup(TaskSource taskSource,
                         int taskCount,
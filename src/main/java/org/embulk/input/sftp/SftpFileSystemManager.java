@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystem;
+import org.apache.commons.vfs2.FileSystemConfigBuilder;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileSystemOptions;
+import org.apache.commons.vfs2.FilesCache;
+import org.apache.commons.vfs2.cache.NullFilesCache;
+import org.apache.commons.vfs2.impl.DefaultFileSystemManager;
+import org.apache.commons.vfs2.provider.sftp.SftpFileProvider;
+import org.apache.commons.vfs2.provider.sftp.SftpFileSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A file system manager with only the sftp provider, initialized once per class loader and shared by
+// the tasks. StandardFileSystemManager parses providers.xml and probes the classes of every
+// optional provider in init(), which took a noticeable part of the startup of short tasks.
+// Each Session gets file systems, and so SSH sessions, of its own, as a manager of its own did, and closes only them.
+// The listing uses another manager without the files cache, so that FileObjects of a large directory are not
+// kept after the listing has read their names and sizes.
+class SftpFileSystemManager
+{
+    private static final Logger log = LoggerFactory.getLogger(SftpFileSystemManager.class);
+    private static final AtomicLong sessionIds = new AtomicLong();
+    private static DefaultFileSystemManager shared;
+    private static DefaultFileSystemManager listing;
+
+    private SftpFileSystemManager()
+    {
+    }
+
+    static synchronized DefaultFileSystemManager shared()
+    {
+        if (shared == null) {
+            shared = create(Optional.empty());
+        }
+        return shared;
+    }
+
+    static synchronized DefaultFileSystemManager listing()
+    {
+        if (listing == null) {
+            listing = create(Optional.of(new NullFilesCache()));
+        }
+        return listing;
+    }
+
+    private static DefaultFileSystemManager create(Optional<FilesCache> filesCache)
+    {
+        if (!log.isDebugEnabled()) {
+            // TODO: change logging format: org.apache.commons.logging.Log
+            System.setProperty("org.apache.commons.logging.Log", "org.apache.commons.logging.impl.NoOpLog");
+        }
+        DefaultFileSystemManager manager = new DefaultFileSystemManager();
+        try {
+            manager.addProvider("sftp", new SftpFileProvider());
+            if (filesCache.isPresent()) {
+                manager.setFilesCache(filesCache.get());
+            }
+            manager.init();
+        }
+        catch (FileSystemException ex) {
+            throw new RuntimeException(ex);
+        }
+        return manager;
+    }
+
+    // a session of the shared manager. fsOptions is modified to identify the session.
+    static Session openSession(FileSystemOptions fsOptions)
+    {
+        SessionConfigBuilder.INSTANCE.setSessionId(fsOptions, sessionIds.incrementAndGet());
+        return new Session(shared(), fsOptions, false);
+    }
+
+    // a session of the manager for the listing
+    static Session openListingSession(FileSystemOptions fsOptions)
+    {
+        SessionConfigBuilder.INSTANCE.setSessionId(fsOptions, sessionIds.incrementAndGet());
+        return new Session(listing(), fsOptions, false);
+    }
+
+    // a session which owns the manager, and closes it at close()
+    static Session openSession(DefaultFileSystemManager manager, FileSystemOptions fsOptions)
+    {
+        return new Session(manager, fsOptions, true);
+    }
+
+    static class Session
+            implements AutoCloseable
+    {
+        private final DefaultFileSystemManager manager;
+        private final FileSystemOptions fsOptions;
+        private final boolean ownsManager;
+        private final Set<FileSystem> fileSystems = new LinkedHashSet<>();
+
+        private Session(DefaultFileSystemManager manager, FileSystemOptions fsOptions, boolean ownsManager)
+        {
+            this.manager = manager;
+            this.fsOptions = fsOptions;
+            this.ownsManager = ownsManager;
+        }
+
+        FileObject resolveFile(String uri) throws FileSystemException
+        {
+            FileObject file = manager.resolveFile(uri, fsOptions);
+            synchronized (fileSystems) {
+                fileSystems.add(file.getFileSystem());
+            }
+            return file;
+        }
+
+        // disconnects the file system. The next resolveFile connects again.
+        void closeFileSystem(FileSystem fileSystem)
+        {
+            synchronized (fileSystems) {
+                fileSystems.remove(fileSystem);
+            }
+            manager.closeFileSystem(fileSystem);
+        }
+
+        @Override
+        public void close()
+        {
+            if (ownsManager) {
+                manager.close();
+                return;
+            }
+            synchronized (fileSystems) {
+                for (FileSystem fileSystem : fileSystems) {
+                    manager.closeFileSystem(fileSystem);
+                }
+                fileSystems.clear();
+            }
+        }
+    }
+
+    // FileSystemOptions of different sessions differ in this option, so that the provider doesn't share
+    // the file system of one session with another
+    private static class SessionConfigBuilder
+            extends FileSystemConfigBuilder
+    {
+        private static final SessionConfigBuilder INSTANCE = new SessionConfigBuilder();
+
+        private SessionConfigBuilder()
+        {
+            super("embulk.input.sftp.");
+        }
+
+        void setSessionId(FileSystemOptions fsOptions, long sessionId)
+        {
+            setParam(fsOptions, "session_id", sessionId);
+        }
+
+        @Override
+        protected Class<? extends FileSystem> getConfigClass()
+        {
+            return SftpFileSystem.class;
+        }
+    }
+}
@@ -16,62 +16,197 @@
 
 package org.embulk.input.sftp;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemException;
 import org.apache.commons.vfs2.FileSystemOptions;
-import org.apache.commons.vfs2.impl.StandardFileSystemManager;
+import org.apache.commons.vfs2.FileType;
+import org.apache.commons.vfs2.RandomAccessContent;
+import org.apache.commons.vfs2.impl.DefaultFileSystemManager;
+import org.apache.commons.vfs2.util.RandomAccessMode;
+import org.embulk.config.ConfigException;
+import org.embulk.spi.Exec;
 import org.embulk.util.file.InputStreamFileInput;
 import org.embulk.util.file.InputStreamFileInput.InputStreamWithHints;
-import org.embulk.util.retryhelper.RetryExecutor;
 import org.embulk.util.retryhelper.RetryGiveupException;
 import org.embulk.util.retryhelper.Retryable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
 
 public class SingleFileProvider
         implements InputStreamFileInput.Provider
 {
-    private final StandardFileSystemManager manager;
-    private final FileSystemOptions fsOptions;
-    private final Iterator<String> iterator;
+    private final SftpFileSystemManager.Session session;
+    private final PluginTask task;
+    private final int taskIndex;
+    private final Optional<FileQueue> queue;
+    private final Iterator<FileQueue.Item> files;
+    private final List<String> processedFiles = new ArrayList<>();
     private final int maxConnectionRetry;
-    private boolean opened = false;
+    private final TransferMetrics metrics;
+    private final Optional<DownloadTraceWriter> trace;
+    private final BandwidthLimiter limiter;
+    private final HostConcurrencyGovernor governor;
+    private final Optional<LocalSpool> spool;
+    private final Optional<ContentCache> cache;
+    private final long previewSampleSize;
+    private final Optional<PrefetchInputStream.Ring> readAhead;
+    private final Map<String, TailOffset> tailOffsets = new TreeMap<>();
+    private LocalSpool.SpooledFile spooled;
+    private boolean holdsSession = false;
+    private boolean sessionOpened = false;
     private final Logger log = LoggerFactory.getLogger(SingleFileProvider.class);
 
-    public SingleFileProvider(PluginTask task, int taskIndex, StandardFileSystemManager manager, FileSystemOptions fsOptions)
+    // the provider closes the manager at close()
+    public SingleFileProvider(PluginTask task, int taskIndex, DefaultFileSystemManager manager, FileSystemOptions fsOptions, TransferMetrics metrics)
     {
-        this.manager = manager;
-        this.fsOptions = fsOptions;
-        this.iterator = task.getFiles().get(taskIndex).iterator();
+        this(task, taskIndex, SftpFileSystemManager.openSession(manager, fsOptions), metrics);
+    }
+
+    SingleFileProvider(PluginTask task, int taskIndex, SftpFileSystemManager.Session session, TransferMetrics metrics)
+    {
+        this.session = session;
+        this.task = task;
+        this.taskIndex = taskIndex;
+        if (task.getDynamicTaskAssignment()) {
+            this.queue = Optional.of(FileQueue.of(task));
+            this.files = queue.get().iterator();
+        }
+        else {
+            this.queue = Optional.empty();
+            this.files = FileQueue.items(task.getFiles(), taskIndex).iterator();
+        }
         this.maxConnectionRetry = task.getMaxConnectionRetry();
+        this.metrics = metrics;
+        this.trace = task.getTraceLogPath().map(DownloadTraceWriter::open);
+        this.limiter = BandwidthLimiter.of(task);
+        this.governor = HostConcurrencyGovernor.of(task);
+        this.cache = ContentCache.of(task);
+        this.spool = task.getSpool() == PluginTask.SpoolMode.LOCAL_DISK ? Optional.of(new LocalSpool(task)) : Optional.empty();
+        this.previewSampleSize = task.getPreviewSampleSize() > 0 && Exec.isPreview() ? task.getPreviewSampleSize() : 0;
+        if (task.getReadAheadBuffers() > 0 && !cache.isPresent() && !spool.isPresent() && previewSampleSize == 0) {
+            this.readAhead = Optional.of(new PrefetchInputStream.Ring(task.getReadAheadBufferSize(), task.getReadAheadBuffers(),
+                    "embulk-input-sftp-read-ahead-" + taskIndex));
+        }
+        else {
+            this.readAhead = Optional.empty();
+        }
     }
 
     @Override
     public InputStreamWithHints openNextWithHints() throws IOException
     {
-        if (opened || !iterator.hasNext()) {
-            return null;
+        while (files.hasNext()) {
+            FileQueue.Item item = files.next();
+            InputStreamWithHints opened = open(item);
+            if (queue.isPresent()) {
+                // a file which turns out not to be a file is processed too, as nothing of it is left to read
+                processedFiles.add(FileQueue.describe(task, item));
+            }
+            if (opened != null) {
+                return opened;
+            }
         }
-        opened = true;
-        final String key = iterator.next();
+        return null;
+    }
+
+    // returns null if the file listed by name only turns out not to be a file
+    private InputStreamWithHints open(FileQueue.Item item) throws IOException
+    {
+        final String key = item.getKey();
+        final FileList.Entry entry = item.getEntry();
+        final long openedAt = System.nanoTime();
 
         try {
-            return RetryExecutor.builder()
-                    .withRetryLimit(maxConnectionRetry)
-                    .withInitialRetryWaitMillis(500)
-                    .withMaxRetryWaitMillis(30 * 1000)
-                    .build()
-                    .runInterruptible(new Retryable<InputStreamWithHints>() {
+            return RetryCoordinator.of(task)
+                    .runInterruptible(maxConnectionRetry, new Retryable<InputStreamWithHints>() {
+                        private int retries = 0;
+
                         @Override
-                        public InputStreamWithHints call() throws FileSystemException
+                        public InputStreamWithHints call() throws IOException
                         {
-                            FileObject file = manager.resolveFile(key, fsOptions);
-                            return new InputStreamWithHints(
-                                    file.getContent().getInputStream(), file.getPublicURIString());
+                            OperationLatencies latencies = metrics.getLatencies();
+                            long start = System.nanoTime();
+                            FileObject file = resolveFile(key);
+                            long connectNanos = System.nanoTime() - start;
+                            metrics.addConnectNanos(connectNanos);
+                            latencies.record(OperationLatencies.Operation.CONNECT, connectNanos);
+                            ConnectionTuner.apply(file, task);
+                            if (!entry.hasSize()) {
+                                // listed by name only. The attributes are read here instead of in the listing.
+                                start = System.nanoTime();
+                                FileType type = file.getType();
+                                latencies.record(OperationLatencies.Operation.STAT, System.nanoTime() - start);
+                                if (type != FileType.FILE) {
+                                    log.warn("{} is not a file or doesn't exist any more. Skipping it", SftpFileInput.getRelativePath(task, Optional.of(key)));
+                                    return null;
+                                }
+                            }
+                            long size = -1;
+                            if (trace.isPresent()) {
+                                // the listed size, or the size in the attributes read above
+                                size = entry.hasSize() ? entry.getSize() : file.getContent().getSize();
+                            }
+                            boolean verified = isVerified(entry);
+                            Optional<byte[]> expectedDigest = verified ? readChecksumFile(key) : Optional.empty();
+                            start = System.nanoTime();
+                            InputStream in;
+                            if (previewSampleSize > 0) {
+                                in = limiter.limit(openEntry(file, entry));
+                            }
+                            else if (task.getIncrementalMode() == PluginTask.IncrementalMode.TAIL) {
+                                in = limiter.limit(tailEntry(file, key, entry));
+                            }
+                            else if (cache.isPresent()) {
+                                in = cachedEntry(file, entry);
+                            }
+                            else if (spool.isPresent()) {
+                                in = spoolEntry(file, entry);
+                            }
+                            else {
+                                in = limiter.limit(openEntry(file, entry));
+                            }
+                            if (verified) {
+                                in = new DigestingInputStream(in, task.getChecksum(), expectedDigest, SftpFileInput.getRelativePath(task, Optional.of(key)));
+                            }
+                            latencies.record(OperationLatencies.Operation.OPEN, System.nanoTime() - start);
+                            TransferMetrics.FileListener listener = null;
+                            if (trace.isPresent()) {
+                                listener = traceListener(key, size, sessionOpened, System.nanoTime() - openedAt, retries);
+                            }
+                            sessionOpened = true;
+                            // metered below the read-ahead ring so that the reads and stalls are the ones of the network
+                            in = metrics.meter(in, openedAt, listener);
+                            if (readAhead.isPresent()) {
+                                in = new PrefetchInputStream(in, readAhead.get(), metrics.readAheadListener());
+                            }
+                            in = gunzip(in);
+                            if (previewSampleSize > 0) {
+                                in = head(in);
+                            }
+                            return new InputStreamWithHints(in, file.getPublicURIString());
                         }
 
                         @Override
@@ -84,10 +219,8 @@ public class SingleFileProvider
                         public void onRetry(Exception exception, int retryCount, int retryLimit, int retryWait)
                                 throws RetryGiveupException
                         {
-                            if (exception.getMessage().indexOf("Permission denied") > 0) {
-                                log.error("Could not download file due to Permission Denied");
-                                throw new RetryGiveupException(exception);
-                            }
+                            metrics.incrementRetries();
+                            retries++;
                             String message = String.format("SFTP GET request failed. Retrying %d/%d after %d seconds. Message: %s",
                                     retryCount, retryLimit, retryWait / 1000, exception.getMessage());
                             if (retryCount % 3 == 0) {
@@ -113,11 +246,296 @@ public class SingleFileProvider
         }
     }
 
+    // the whole file, or the lines in the byte range of entry
+    private InputStream openEntry(FileObject file, FileList.Entry entry) throws IOException
+    {
+        if (!entry.isRange()) {
+            return file.getContent().getInputStream();
+        }
+        byte[] header = readHeader(file, entry);
+        final RandomAccessContent content = file.getContent().getRandomAccessContent(RandomAccessMode.READ);
+        content.seek(LineRangeInputStream.seekPosition(entry.getRangeStart()));
+        InputStream raw = new FilterInputStream(content.getInputStream())
+        {
+            @Override
+            public void close() throws IOException
+            {
+                try {
+                    super.close();
+                }
+                finally {
+                    content.close();
+                }
+            }
+        };
+        InputStream range = new LineRangeInputStream(new BufferedInputStream(raw), entry.getRangeStart(), entry.getRangeEnd());
+        return prepend(header, range);
+    }
+
+    // only whole files are verified with checksum files
+    private boolean isVerified(FileList.Entry entry)
+    {
+        return task.getChecksum() != PluginTask.ChecksumAlgorithm.NONE && !entry.isRange() && previewSampleSize == 0
+                && task.getIncrementalMode() != PluginTask.IncrementalMode.TAIL;
+    }
+
+    // the digest in the checksum file next to the file, such as "data.csv.sha256" of "data.csv"
+    private Optional<byte[]> readChecksumFile(String key) throws IOException
+    {
+        String path = SftpFileInput.getRelativePath(task, Optional.of(key));
+        FileObject checksumFile = session.resolveFile(key + task.getChecksum().getFileExtension());
+        try {
+            if (!checksumFile.exists()) {
+                if (task.getChecksumFileRequired()) {
+                    throw new ConfigException(String.format("Checksum file %s%s is not found", path, task.getChecksum().getFileExtension()));
+                }
+                log.warn("Checksum file {}{} is not found. {} is read without verification", path, task.getChecksum().getFileExtension(), path);
+                return Optional.empty();
+            }
+            try (InputStream in = new BoundedInputStream(checksumFile.getContent().getInputStream(), 4096)) {
+                return Optional.of(DigestingInputStream.parseChecksumFile(IOUtils.toString(in, StandardCharsets.UTF_8), task.getChecksum()));
+            }
+        }
+        finally {
+            checksumFile.close();
+        }
+    }
+
+    // decompresses gzip files with parallel_gzip. The bytes read from the server are metered before this.
+    private InputStream gunzip(InputStream in)
+    {
+        if (!task.getParallelGzip()) {
+            return in;
+        }
+        return new ParallelGzipInputStream(in, GzipInflaterPool.of(task));
+    }
+
+    // the lines which start in the first preview_sample_size bytes. The last line is cut at twice the size
+    // so that a file without line breaks is not read to the end.
+    private InputStream head(InputStream in)
+    {
+        return new BoundedInputStream(new LineRangeInputStream(in, 0, previewSampleSize), previewSampleSize * 2);
+    }
+
+    // the complete lines appended after the offset of the last run. The file is read from the head again
+    // if the bytes before the offset differ from the last run.
+    private InputStream tailEntry(FileObject file, String key, FileList.Entry entry) throws IOException
+    {
+        final String path = SftpFileInput.getRelativePath(task, Optional.of(key));
+        long start = entry.getRangeStart();
+        byte[] header = new byte[0];
+        if (start > 0 && task.getSplitHeaderLines().orElse(0) > 0) {
+            header = readHeaderLines(file.getContent().getInputStream(), task.getSplitHeaderLines().get());
+        }
+
+        final RandomAccessContent content = file.getContent().getRandomAccessContent(RandomAccessMode.READ);
+        long windowStart = Math.max(0, start - TailOffset.FINGERPRINT_SIZE);
+        content.seek(windowStart);
+        InputStream raw = content.getInputStream();
+        byte[] window = new byte[(int) (start - windowStart)];
+        int n = 0;
+        while (n < window.length) {
+            int r = raw.read(window, n, window.length - n);
+            if (r < 0) {
+                break;
+            }
+            n += r;
+        }
+        TailOffset last = task.getTailOffsets().get(path);
+        if (start > 0 && (n < window.length || last == null || !last.matches(window))) {
+            log.warn("{} was replaced since the last run. Reading it from the head", path);
+            content.seek(0);
+            raw = content.getInputStream();
+            start = 0;
+            window = new byte[0];
+            header = new byte[0];
+        }
+
+        final TailInputStream tail = new TailInputStream(new BufferedInputStream(raw), start, entry.getRangeEnd(), window);
+        InputStream in = new FilterInputStream(tail)
+        {
+            @Override
+            public void close() throws IOException
+            {
+                try {
+                    super.close();
+                }
+                finally {
+                    content.close();
+                    tailOffsets.put(path, tail.toTailOffset());
+                }
+            }
+        };
+        return prepend(header, in);
+    }
+
+    // files this task pulled from the queue with dynamic_task_assignment, for the TaskReport
+    List<String> getProcessedFiles()
+    {
+        return processedFiles;
+    }
+
+    // offsets of the files read in tail mode, for the TaskReport
+    Map<String, TailOffset> getTailOffsets()
+    {
+        return tailOffsets;
+    }
+
+    // downloads the file or the byte range of entry to the spool, and closes the session before parsing
+    private InputStream spoolEntry(FileObject file, FileList.Entry entry) throws IOException
+    {
+        if (spooled != null) {
+            // left by the last file or a failed attempt
+            spooled.delete();
+            spooled = null;
+        }
+        byte[] header = readHeader(file, entry);
+        if (entry.isRange()) {
+            spooled = spool.get().download(file, LineRangeInputStream.seekPosition(entry.getRangeStart()), entry.getRangeEnd(), true);
+        }
+        else {
+            spooled = spool.get().download(file, 0, file.getContent().getSize(), false);
+        }
+        session.closeFileSystem(file.getFileSystem());
+        releaseSession();
+
+        InputStream in = spooled.open();
+        if (entry.isRange()) {
+            in = new LineRangeInputStream(in, entry.getRangeStart(), entry.getRangeEnd());
+        }
+        return prepend(header, in);
+    }
+
+    // serves the file or the byte range of entry from the local copy in the content cache, and closes the session
+    private InputStream cachedEntry(FileObject file, FileList.Entry entry) throws IOException
+    {
+        FileChannel channel = cache.get().get(file, limiter);
+        try {
+            session.closeFileSystem(file.getFileSystem());
+            releaseSession();
+
+            if (!entry.isRange()) {
+                return Channels.newInputStream(channel);
+            }
+            byte[] header = new byte[0];
+            if (needsHeader(entry)) {
+                header = readHeaderLines(new CloseShieldInputStream(Channels.newInputStream(channel)), task.getSplitHeaderLines().get());
+            }
+            channel.position(LineRangeInputStream.seekPosition(entry.getRangeStart()));
+            InputStream range = new LineRangeInputStream(new BufferedInputStream(Channels.newInputStream(channel)),
+                    entry.getRangeStart(), entry.getRangeEnd());
+            return prepend(header, range);
+        }
+        catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    // header lines of the file for a range other than the first
+    private byte[] readHeader(FileObject file, FileList.Entry entry) throws IOException
+    {
+        if (!needsHeader(entry)) {
+            return new byte[0];
+        }
+        return readHeaderLines(file.getContent().getInputStream(), task.getSplitHeaderLines().get());
+    }
+
+    private boolean needsHeader(FileList.Entry entry)
+    {
+        return entry.isRange() && entry.getRangeStart() > 0 && task.getSplitHeaderLines().orElse(0) > 0;
+    }
+
+    private static InputStream prepend(byte[] header, InputStream in)
+    {
+        if (header.length == 0) {
+            return in;
+        }
+        return new SequenceInputStream(new ByteArrayInputStream(header), in);
+    }
+
+    private static byte[] readHeaderLines(InputStream file, int lines) throws IOException
+    {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        try (InputStream in = new BufferedInputStream(file)) {
+            int c;
+            while (lines > 0 && (c = in.read()) >= 0) {
+                header.write(c);
+                if (c == '\n') {
+                    lines--;
+                }
+            }
+        }
+        return header.toByteArray();
+    }
+
+    // resolves key, holding a session permit of the host from the first handshake until close().
+    // A handshake rejected while other tasks hold sessions waits for a permit again instead of backing off.
+    private FileObject resolveFile(String key) throws IOException
+    {
+        if (holdsSession) {
+            return session.resolveFile(key);
+        }
+        for (int rejections = 0; ; rejections++) {
+            try {
+                governor.acquire();
+            }
+            catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+            try {
+                FileObject file = session.resolveFile(key);
+                governor.onSuccess();
+                holdsSession = true;
+                return file;
+            }
+            catch (FileSystemException ex) {
+                governor.release();
+                if (rejections >= maxConnectionRetry || !HostConcurrencyGovernor.isHandshakeRejection(ex) || !governor.onRejected()) {
+                    throw ex;
+                }
+                log.info("SFTP handshake was rejected. Waiting for another session to the host to be closed");
+            }
+        }
+    }
+
+    private TransferMetrics.FileListener traceListener(String key, long size, boolean sessionReused, long openNanos, int retries)
+    {
+        final Map<String, Object> record = new LinkedHashMap<>();
+        record.put("path", SftpFileInput.getRelativePath(task, Optional.of(key)));
+        record.put("size", size);
+        record.put("task_index", taskIndex);
+        record.put("session_reused", sessionReused);
+        record.put("open_millis", openNanos / 1000000);
+        record.put("retries", retries);
+        return (bytes, transferNanos) -> {
+            record.put("bytes", bytes);
+            record.put("transfer_millis", transferNanos / 1000000);
+            record.put("mb_per_sec", transferNanos == 0 ? 0.0 : bytes / 1024.0 / 1024.0 * 1000000000.0 / transferNanos);
+            trace.get().offer(record);
+        };
+    }
+
     @Override
     public void close()
     {
-        if (manager != null) {
-            manager.close();
+        trace.ifPresent(DownloadTraceWriter::release);
+        readAhead.ifPresent(PrefetchInputStream.Ring::close);
+        if (task.getLatencyHistogramDirectory().isPresent()) {
+            metrics.getLatencies().writeTo(new File(task.getLatencyHistogramDirectory().get(), "sftp-latency-task-" + taskIndex + ".json"));
+        }
+        session.close();
+        releaseSession();
+        if (spooled != null) {
+            spooled.delete();
+        }
+    }
+
+    private void releaseSession()
+    {
+        if (holdsSession) {
+            holdsSession = false;
+            governor.release();
         }
     }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+// Reads the complete lines of a growing file in [start, end), where end is the size of the file when it was listed.
+// The bytes after the last line break are held back, because the line may still be being written. They are
+// read by the next run, which starts at getOffset().
+// The underlying stream must be positioned at start. window is the bytes before start which the fingerprint covers.
+class TailInputStream
+        extends FilterInputStream
+{
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final long end;
+    private long position;
+    private long offset;
+
+    // buffer[head, ready) are complete lines to be returned, buffer[ready, tail) is the line being read
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private int head = 0;
+    private int ready = 0;
+    private int tail = 0;
+    private boolean eof = false;
+
+    private final byte[] window = new byte[TailOffset.FINGERPRINT_SIZE];
+    private int windowLength;
+
+    TailInputStream(InputStream in, long start, long end, byte[] window)
+    {
+        super(in);
+        this.end = end;
+        this.position = start;
+        this.offset = start;
+        this.windowLength = Math.min(window.length, this.window.length);
+        System.arraycopy(window, window.length - windowLength, this.window, 0, windowLength);
+    }
+
+    // position of the file after the last line returned
+    long getOffset()
+    {
+        return offset;
+    }
+
+    TailOffset toTailOffset()
+    {
+        return new TailOffset(offset, TailOffset.fingerprint(window, windowLength));
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        if (head == ready && !fill()) {
+            return -1;
+        }
+        int n = Math.min(len, ready - head);
+        System.arraycopy(buffer, head, b, off, n);
+        slide(b, off, n);
+        head += n;
+        offset += n;
+        return n;
+    }
+
+    // reads until a line is completed. Returns false when the rest before end has no line break.
+    private boolean fill() throws IOException
+    {
+        while (!eof) {
+            if (head > 0) {
+                System.arraycopy(buffer, head, buffer, 0, tail - head);
+                ready -= head;
+                tail -= head;
+                head = 0;
+            }
+            if (tail == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int n = in.read(buffer, tail, (int) Math.min(buffer.length - tail, end - position));
+            if (n <= 0) {
+                eof = true;
+                break;
+            }
+            position += n;
+            for (int i = tail + n - 1; i >= tail; i--) {
+                if (buffer[i] == '\n') {
+                    ready = i + 1;
+                    break;
+                }
+            }
+            tail += n;
+            if (position >= end) {
+                eof = true;
+            }
+            if (ready > head) {
+                return true;
+            }
+        }
+        return ready > head;
+    }
+
+    // keeps the last bytes returned for the fingerprint
+    private void slide(byte[] b, int off, int n)
+    {
+        if (n >= window.length) {
+            System.arraycopy(b, off + n - window.length, window, 0, window.length);
+            windowLength = window.length;
+            return;
+        }
+        int keep = Math.min(windowLength, window.length - n);
+        System.arraycopy(window, windowLength - keep, window, 0, keep);
+        System.arraycopy(b, off, window, keep, n);
+        windowLength = keep + n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException
+    {
+        byte[] b = new byte[(int) Math.min(n, 8192)];
+        long skipped = 0;
+        while (skipped < n) {
+            int r = read(b, 0, (int) Math.min(b.length, n - skipped));
+            if (r < 0) {
+                break;
+            }
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException
+    {
+        return ready - head;
+    }
+
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+
+// Lists the bytes appended to each file since the offset of the last run, in tail mode.
+// Offsets of the files which are still on the server are retained, so that the ConfigDiff drops removed files.
+class TailListing
+        implements IncrementalListing
+{
+    private static final Logger log = LoggerFactory.getLogger(TailListing.class);
+
+    private final PluginTask task;
+    private final Map<String, TailOffset> retained = new TreeMap<>();
+
+    TailListing(PluginTask task)
+    {
+        this.task = task;
+    }
+
+    // adds the range of the file after its last offset. Files without appended bytes are not added.
+    @Override
+    public boolean add(FileList.Builder builder, ListedFile file)
+    {
+        String fileName = file.getKey();
+        long fileSize = file.getSize();
+        String path = SftpFileInput.getRelativePath(task, Optional.of(fileName));
+        TailOffset last = task.getTailOffsets().get(path);
+        long start = 0;
+        if (last != null) {
+            retained.put(path, last);
+            if (fileSize == last.getOffset()) {
+                return false;
+            }
+            if (fileSize < last.getOffset()) {
+                log.warn("{} is smaller than the offset of the last run {}. Reading it from the head", path, last.getOffset());
+            }
+            else {
+                start = last.getOffset();
+            }
+        }
+        return builder.addRange(fileName, start, fileSize);
+    }
+
+    // the offsets of removed files are dropped from the next ConfigDiff
+    @Override
+    public void finish(PluginTask task)
+    {
+        task.setTailOffsets(retained);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import org.embulk.config.DataSource;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// The bytes of a file consumed in tail mode. The fingerprint is the SHA-256 of the FINGERPRINT_SIZE bytes
+// before the offset, so that a file which was truncated or replaced since the last run is read from the head again.
+public class TailOffset
+{
+    static final int FINGERPRINT_SIZE = 4096;
+
+    private final long offset;
+    private final String fingerprint;
+
+    @JsonCreator
+    public TailOffset(
+            @JsonProperty("offset") long offset,
+            @JsonProperty("fingerprint") String fingerprint)
+    {
+        this.offset = offset;
+        this.fingerprint = fingerprint;
+    }
+
+    @JsonProperty("offset")
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    @JsonProperty("fingerprint")
+    public String getFingerprint()
+    {
+        return fingerprint;
+    }
+
+    // bytes is the FINGERPRINT_SIZE bytes before offset, or the head of the file if offset is smaller
+    boolean matches(byte[] bytes)
+    {
+        return fingerprint.equals(fingerprint(bytes, bytes.length));
+    }
+
+    // the first length bytes of window
+    static String fingerprint(byte[] window, int length)
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+        digest.update(window, 0, length);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    // TaskReport and ConfigDiff are serialized by Embulk, which doesn't see the annotations of this class
+    Map<String, Object> toMap()
+    {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("offset", offset);
+        map.put("fingerprint", fingerprint);
+        return map;
+    }
+
+    static Map<String, Object> toMaps(Map<String, TailOffset> offsets)
+    {
+        Map<String, Object> maps = new TreeMap<>();
+        for (Map.Entry<String, TailOffset> entry : offsets.entrySet()) {
+            maps.put(entry.getKey(), entry.getValue().toMap());
+        }
+        return maps;
+    }
+
+    static TailOffset fromDataSource(DataSource source)
+    {
+        return new TailOffset(source.get(long.class, "offset"), source.get(String.class, "fingerprint"));
+    }
+}
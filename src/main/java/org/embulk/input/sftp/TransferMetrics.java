@@ -0,0 +1,295 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.embulk.config.TaskReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+// Transfer counters of one task. They are reported through TaskReport and aggregated in SftpFileInputPlugin.resume.
+// An instance is confined to the thread which runs the task, except that the read-ahead thread of the file being read
+// meters the reads. The task thread joins that thread at close before it touches the counters again.
+class TransferMetrics
+{
+    private static final Logger log = LoggerFactory.getLogger(TransferMetrics.class);
+    private static final int SLOWEST_TASKS_TO_LOG = 3;
+
+    private final int taskIndex;
+    private final OperationLatencies latencies;
+    private long bytesRead;
+    private long filesOpened;
+    private long connectNanos;
+    private long timeToFirstByteNanos;
+    private long readStallNanos;
+    private long transferNanos;
+    private long retries;
+    private long readAheadEmptyWaitNanos;
+    private long readAheadFullWaitNanos;
+    private long readAheadChunks;
+    private double readAheadOccupancySum;
+
+    TransferMetrics(int taskIndex)
+    {
+        this(taskIndex, OperationLatencies.DISABLED);
+    }
+
+    TransferMetrics(int taskIndex, OperationLatencies latencies)
+    {
+        this.taskIndex = taskIndex;
+        this.latencies = latencies;
+    }
+
+    int getTaskIndex()
+    {
+        return taskIndex;
+    }
+
+    OperationLatencies getLatencies()
+    {
+        return latencies;
+    }
+
+    long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    long getTransferMillis()
+    {
+        return transferNanos / 1000000;
+    }
+
+    void addConnectNanos(long nanos)
+    {
+        connectNanos += nanos;
+    }
+
+    void incrementRetries()
+    {
+        retries++;
+    }
+
+    interface FileListener
+    {
+        void onClose(long bytes, long transferNanos);
+    }
+
+    // wraps a stream opened at openedAt (System.nanoTime) to count bytes and the time spent blocked in read
+    InputStream meter(InputStream in, long openedAt)
+    {
+        return meter(in, openedAt, null);
+    }
+
+    InputStream meter(InputStream in, long openedAt, FileListener listener)
+    {
+        filesOpened++;
+        return new MeteredInputStream(in, openedAt, listener);
+    }
+
+    // adds the waits of the read-ahead ring of each file to this task
+    PrefetchInputStream.Listener readAheadListener()
+    {
+        return (emptyWaitNanos, fullWaitNanos, chunks, occupancySum) -> {
+            readAheadEmptyWaitNanos += emptyWaitNanos;
+            readAheadFullWaitNanos += fullWaitNanos;
+            readAheadChunks += chunks;
+            readAheadOccupancySum += occupancySum;
+        };
+    }
+
+    // MB/s while streams were open
+    double getThroughput()
+    {
+        if (transferNanos == 0) {
+            return 0.0;
+        }
+        return bytesRead / 1024.0 / 1024.0 * 1000000000.0 / transferNanos;
+    }
+
+    TaskReport toTaskReport(TaskReport report)
+    {
+        report.set("task_index", taskIndex)
+                .set("bytes_read", bytesRead)
+                .set("files_opened", filesOpened)
+                .set("connect_millis", connectNanos / 1000000)
+                .set("time_to_first_byte_millis", timeToFirstByteNanos / 1000000)
+                .set("read_stall_millis", readStallNanos / 1000000)
+                .set("transfer_millis", transferNanos / 1000000)
+                .set("retries", retries);
+        if (readAheadChunks > 0) {
+            // the parser waited for the network when the ring was empty, and the reader waited for the parser when it was full
+            report.set("read_ahead_empty_wait_millis", readAheadEmptyWaitNanos / 1000000)
+                    .set("read_ahead_full_wait_millis", readAheadFullWaitNanos / 1000000)
+                    .set("read_ahead_chunks", readAheadChunks)
+                    .set("read_ahead_average_occupancy", readAheadOccupancySum / readAheadChunks);
+        }
+        return report;
+    }
+
+    static TransferMetrics fromTaskReport(TaskReport report)
+    {
+        TransferMetrics metrics = new TransferMetrics(report.get(int.class, "task_index", -1));
+        metrics.bytesRead = report.get(long.class, "bytes_read", 0L);
+        metrics.filesOpened = report.get(long.class, "files_opened", 0L);
+        metrics.connectNanos = report.get(long.class, "connect_millis", 0L) * 1000000;
+        metrics.timeToFirstByteNanos = report.get(long.class, "time_to_first_byte_millis", 0L) * 1000000;
+        metrics.readStallNanos = report.get(long.class, "read_stall_millis", 0L) * 1000000;
+        metrics.transferNanos = report.get(long.class, "transfer_millis", 0L) * 1000000;
+        metrics.retries = report.get(long.class, "retries", 0L);
+        metrics.readAheadEmptyWaitNanos = report.get(long.class, "read_ahead_empty_wait_millis", 0L) * 1000000;
+        metrics.readAheadFullWaitNanos = report.get(long.class, "read_ahead_full_wait_millis", 0L) * 1000000;
+        metrics.readAheadChunks = report.get(long.class, "read_ahead_chunks", 0L);
+        metrics.readAheadOccupancySum = report.get(double.class, "read_ahead_average_occupancy", 0.0) * metrics.readAheadChunks;
+        return metrics;
+    }
+
+    static void logSummary(List<TaskReport> reports)
+    {
+        if (reports == null) {
+            return;
+        }
+        List<TransferMetrics> all = new ArrayList<>();
+        TransferMetrics total = new TransferMetrics(-1);
+        for (TaskReport report : reports) {
+            if (report == null || !report.has("bytes_read")) {
+                continue;
+            }
+            TransferMetrics m = fromTaskReport(report);
+            all.add(m);
+            total.bytesRead += m.bytesRead;
+            total.filesOpened += m.filesOpened;
+            total.connectNanos += m.connectNanos;
+            total.timeToFirstByteNanos += m.timeToFirstByteNanos;
+            total.readStallNanos += m.readStallNanos;
+            total.transferNanos += m.transferNanos;
+            total.retries += m.retries;
+            total.readAheadEmptyWaitNanos += m.readAheadEmptyWaitNanos;
+            total.readAheadFullWaitNanos += m.readAheadFullWaitNanos;
+            total.readAheadChunks += m.readAheadChunks;
+            total.readAheadOccupancySum += m.readAheadOccupancySum;
+        }
+        if (all.isEmpty()) {
+            return;
+        }
+
+        double[] throughputs = new double[all.size()];
+        for (int i = 0; i < all.size(); i++) {
+            throughputs[i] = all.get(i).getThroughput();
+        }
+        Arrays.sort(throughputs);
+
+        log.info("Transfer summary of {} tasks: bytes: {}, files: {}, connect: {} ms, time to first byte: {} ms, read stall: {} ms, transfer: {} ms, retries: {}",
+                all.size(), total.bytesRead, total.filesOpened, total.connectNanos / 1000000,
+                total.timeToFirstByteNanos / 1000000, total.readStallNanos / 1000000, total.transferNanos / 1000000, total.retries);
+        if (total.readAheadChunks > 0) {
+            log.info("Read-ahead: parser waited for the network: {} ms, reader waited for the parser: {} ms, average ring occupancy: {}%. The bottleneck is {}",
+                    total.readAheadEmptyWaitNanos / 1000000, total.readAheadFullWaitNanos / 1000000,
+                    String.format("%.1f", total.readAheadOccupancySum / total.readAheadChunks * 100),
+                    total.readAheadEmptyWaitNanos >= total.readAheadFullWaitNanos ? "the network" : "parsing");
+        }
+        log.info("Task throughput (MB/s): p50: {}, p95: {}, p99: {}",
+                String.format("%.2f", percentile(throughputs, 50)),
+                String.format("%.2f", percentile(throughputs, 95)),
+                String.format("%.2f", percentile(throughputs, 99)));
+
+        all.sort(Comparator.comparingLong(TransferMetrics::getTransferMillis).reversed());
+        for (TransferMetrics m : all.subList(0, Math.min(SLOWEST_TASKS_TO_LOG, all.size()))) {
+            log.info("Slow task {}: transfer: {} ms, bytes: {}, throughput: {} MB/s, read stall: {} ms, retries: {}",
+                    m.taskIndex, m.getTransferMillis(), m.bytesRead, String.format("%.2f", m.getThroughput()),
+                    m.readStallNanos / 1000000, m.retries);
+        }
+    }
+
+    // nearest-rank percentile of sorted values
+    static double percentile(double[] sorted, int p)
+    {
+        int rank = (int) Math.ceil(p / 100.0 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private class MeteredInputStream
+            extends FilterInputStream
+    {
+        private final long openedAt;
+        private final FileListener listener;
+        private long fileBytes = 0;
+        private boolean firstByte = true;
+        private boolean closed = false;
+
+        MeteredInputStream(InputStream in, long openedAt, FileListener listener)
+        {
+            super(in);
+            this.openedAt = openedAt;
+            this.listener = listener;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            long start = System.nanoTime();
+            int b = super.read();
+            account(start, b < 0 ? -1 : 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            long start = System.nanoTime();
+            int n = super.read(b, off, len);
+            account(start, n);
+            return n;
+        }
+
+        private void account(long start, int n)
+        {
+            long now = System.nanoTime();
+            readStallNanos += now - start;
+            latencies.record(OperationLatencies.Operation.READ_CALL, now - start);
+            if (n > 0) {
+                if (firstByte) {
+                    timeToFirstByteNanos += now - openedAt;
+                    firstByte = false;
+                }
+                bytesRead += n;
+                fileBytes += n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!closed) {
+                closed = true;
+                long nanos = System.nanoTime() - openedAt;
+                transferNanos += nanos;
+                if (listener != null) {
+                    listener.onClose(fileBytes, nanos);
+                }
+            }
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.apache.sshd.common.NamedFactory;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.server.Command;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.password.PasswordAuthenticator;
+import org.apache.sshd.server.keyprovider.AbstractGeneratorHostKeyProvider;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.subsystem.sftp.SftpSubsystemFactory;
+import org.embulk.config.ConfigSource;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+// In-process SFTP server serving a local directory, for tests and benchmarks which need a real server
+class EmbeddedSftpServer
+        implements AutoCloseable
+{
+    static final String HOST = "127.0.0.1";
+    static final String USERNAME = "username";
+    static final String PASSWORD = "password";
+
+    private final Path root;
+    private final int port;
+    private final SshServer sshServer;
+
+    EmbeddedSftpServer(Path root, int port) throws IOException
+    {
+        this.root = root;
+        this.port = port;
+
+        // known_hosts of JSch goes to a temporary directory
+        Path sshDir = Files.createTempDirectory("embulk-input-sftp-ssh");
+        System.setProperty("vfs.sftp.sshdir", sshDir.toString());
+
+        sshServer = SshServer.setUpDefaultServer();
+        VirtualFileSystemFactory fsFactory = new VirtualFileSystemFactory();
+        fsFactory.setUserHomeDir(USERNAME, root);
+        sshServer.setFileSystemFactory(fsFactory);
+        sshServer.setHost(HOST);
+        sshServer.setPort(port);
+        sshServer.setSubsystemFactories(Collections.<NamedFactory<Command>>singletonList(new SftpSubsystemFactory()));
+        AbstractGeneratorHostKeyProvider hostKeyProvider = new SimpleGeneratorHostKeyProvider(sshDir.resolve("hostkey.ser").toFile());
+        hostKeyProvider.setAlgorithm("RSA");
+        sshServer.setKeyPairProvider(hostKeyProvider);
+        sshServer.setPasswordAuthenticator(new PasswordAuthenticator()
+        {
+            @Override
+            public boolean authenticate(final String username, final String password, final ServerSession session)
+            {
+                return USERNAME.contentEquals(username) && PASSWORD.contentEquals(password);
+            }
+        });
+        sshServer.start();
+    }
+
+    Path getRoot()
+    {
+        return root;
+    }
+
+    int getPort()
+    {
+        return port;
+    }
+
+    // config of the plugin reading pathPrefix of this server. The user directory is the root directory.
+    ConfigSource config(String pathPrefix)
+    {
+        return SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.newConfigSource()
+                .set("type", "sftp")
+                .set("host", HOST)
+                .set("port", port)
+                .set("user", USERNAME)
+                .set("password", PASSWORD)
+                .set("path_prefix", pathPrefix)
+                .set("last_path", "");
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        sshServer.stop(true);
+    }
+}
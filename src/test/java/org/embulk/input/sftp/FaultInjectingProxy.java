@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Proxy in front of the embedded SSHD which injects faults into the server to client direction,
+// where SFTP READ and READDIR responses flow.
+// A fault is armed with inject() and hits the next "connections" new connections once "afterBytes" bytes
+// were sent to the client on each of them. Connections opened before inject() are not affected.
+class FaultInjectingProxy
+        extends ShapingProxy
+{
+    enum Fault
+    {
+        // closes the connection
+        DROP,
+        // delays the rest of the stream by stallMillis
+        STALL,
+        // flips the bits of one byte, which breaks the MAC of the SSH packet
+        CORRUPT
+    }
+
+    private final Map<Socket, Connection> connections = new ConcurrentHashMap<>();
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final AtomicInteger rejectedSessions = new AtomicInteger();
+    private final AtomicInteger faultedConnections = new AtomicInteger();
+    private final AtomicLong wastedBytes = new AtomicLong();
+    private final AtomicInteger armedConnections = new AtomicInteger();
+    private volatile int maxSessions = Integer.MAX_VALUE;
+    private volatile Fault fault;
+    private volatile long afterBytes;
+    private volatile long stallMillis;
+
+    FaultInjectingProxy(int targetPort) throws IOException
+    {
+        super(targetPort, 0, 0);
+    }
+
+    FaultInjectingProxy inject(Fault fault, long afterBytes, int connections)
+    {
+        this.fault = fault;
+        this.afterBytes = afterBytes;
+        this.armedConnections.set(connections);
+        return this;
+    }
+
+    FaultInjectingProxy stallMillis(long millis)
+    {
+        this.stallMillis = millis;
+        return this;
+    }
+
+    // new connections are closed right after accept while this many sessions are open
+    FaultInjectingProxy maxSessions(int maxSessions)
+    {
+        this.maxSessions = maxSessions;
+        return this;
+    }
+
+    int getActiveSessions()
+    {
+        return activeSessions.get();
+    }
+
+    int getRejectedSessions()
+    {
+        return rejectedSessions.get();
+    }
+
+    int getFaultedConnections()
+    {
+        return faultedConnections.get();
+    }
+
+    // bytes sent to the client on connections which were dropped or corrupted. They have to be transferred again.
+    long getWastedBytes()
+    {
+        return wastedBytes.get();
+    }
+
+    @Override
+    void connect(Socket client, Socket server) throws IOException
+    {
+        if (activeSessions.incrementAndGet() > maxSessions) {
+            activeSessions.decrementAndGet();
+            rejectedSessions.incrementAndGet();
+            closeQuietly(client);
+            closeQuietly(server);
+            return;
+        }
+        Connection connection = new Connection(client, armedConnections.getAndDecrement() > 0);
+        connections.put(client, connection);
+        connections.put(server, connection);
+        super.connect(client, server);
+    }
+
+    @Override
+    void write(Socket to, OutputStream out, byte[] data) throws IOException
+    {
+        Connection connection = connections.get(to);
+        if (connection == null || to != connection.client) {
+            // client to server direction
+            super.write(to, out, data);
+            return;
+        }
+        if (!connection.faulty || connection.faulted) {
+            super.write(to, out, data);
+            connection.bytes += data.length;
+            return;
+        }
+
+        long remaining = afterBytes - connection.bytes;
+        if (data.length <= remaining) {
+            super.write(to, out, data);
+            connection.bytes += data.length;
+            return;
+        }
+
+        int head = (int) Math.max(0, remaining);
+        out.write(data, 0, head);
+        out.flush();
+        connection.bytes += head;
+        connection.faulted = true;
+        faultedConnections.incrementAndGet();
+        switch (fault) {
+        case DROP:
+            closeQuietly(to);
+            throw new IOException("Fault injection: dropped the connection after " + connection.bytes + " bytes");
+        case STALL:
+            try {
+                TimeUnit.MILLISECONDS.sleep(stallMillis);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            }
+            out.write(data, head, data.length - head);
+            out.flush();
+            connection.bytes += data.length - head;
+            break;
+        case CORRUPT:
+            data[head] ^= (byte) 0xff;
+            out.write(data, head, data.length - head);
+            out.flush();
+            connection.bytes += data.length - head;
+            break;
+        default:
+            throw new IllegalStateException();
+        }
+    }
+
+    @Override
+    void disconnected(Socket from, Socket to)
+    {
+        Connection connection = connections.remove(from);
+        connections.remove(to);
+        if (connection != null) {
+            activeSessions.decrementAndGet();
+            if (connection.faulted && fault != Fault.STALL) {
+                wastedBytes.addAndGet(connection.bytes);
+            }
+        }
+    }
+
+    // state of one proxied connection. bytes and faulted are written only by the downstream writer thread.
+    private static class Connection
+    {
+        private final Socket client;
+        private final boolean faulty;
+        private volatile long bytes = 0;
+        private volatile boolean faulted = false;
+
+        Connection(Socket client, boolean faulty)
+        {
+            this.client = client;
+            this.faulty = faulty;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// TCP proxy which emulates a WAN link in front of a local server.
+// Every chunk is delayed by half of the RTT in each direction, and each direction is limited to
+// bytesPerSecond. Point the plugin to getPort() instead of the server port.
+class ShapingProxy
+        implements AutoCloseable
+{
+    private static final Logger log = LoggerFactory.getLogger(ShapingProxy.class);
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final int targetPort;
+    private final long oneWayDelayNanos;
+    private final long bytesPerSecond;
+    private final ServerSocket serverSocket;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private volatile boolean closed = false;
+
+    // bytesPerSecond <= 0 means unlimited
+    ShapingProxy(int targetPort, long rttMillis, long bytesPerSecond) throws IOException
+    {
+        this.targetPort = targetPort;
+        this.oneWayDelayNanos = TimeUnit.MILLISECONDS.toNanos(rttMillis) / 2;
+        this.bytesPerSecond = bytesPerSecond;
+        this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName(EmbeddedSftpServer.HOST));
+        Thread acceptor = new Thread(this::accept, "shaping-proxy-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    private void accept()
+    {
+        while (!closed) {
+            try {
+                Socket client = serverSocket.accept();
+                Socket server = new Socket(EmbeddedSftpServer.HOST, targetPort);
+                client.setTcpNoDelay(true);
+                server.setTcpNoDelay(true);
+                sockets.add(client);
+                sockets.add(server);
+                connect(client, server);
+            }
+            catch (IOException ex) {
+                if (!closed) {
+                    log.warn("Shaping proxy failed to accept a connection", ex);
+                }
+            }
+        }
+    }
+
+    // starts forwarding of both directions. Overridden by proxies which tamper with the traffic.
+    void connect(Socket client, Socket server) throws IOException
+    {
+        forward(client, server, "upstream");
+        forward(server, client, "downstream");
+    }
+
+    void forward(Socket from, Socket to, String name) throws IOException
+    {
+        final InputStream in = from.getInputStream();
+        final OutputStream out = to.getOutputStream();
+        final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+
+        Thread reader = new Thread(() -> {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            try {
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    queue.put(new Chunk(Arrays.copyOf(buffer, n), System.nanoTime() + oneWayDelayNanos));
+                }
+            }
+            catch (IOException | InterruptedException ex) {
+                // connection closed
+            }
+            queue.add(Chunk.EOF);
+        }, "shaping-proxy-" + name + "-reader");
+
+        Thread writer = new Thread(() -> {
+            try {
+                while (true) {
+                    Chunk chunk = queue.take();
+                    if (chunk == Chunk.EOF) {
+                        break;
+                    }
+                    sleepUntil(chunk.releaseAt);
+                    if (bytesPerSecond > 0) {
+                        sleepUntil(System.nanoTime() + chunk.data.length * 1000000000L / bytesPerSecond);
+                    }
+                    write(to, out, chunk.data);
+                }
+            }
+            catch (IOException | InterruptedException ex) {
+                // connection closed
+            }
+            closeQuietly(from);
+            closeQuietly(to);
+            disconnected(from, to);
+        }, "shaping-proxy-" + name + "-writer");
+
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+    }
+
+    // writes one chunk to the socket "to". Overridden by proxies which tamper with the traffic.
+    void write(Socket to, OutputStream out, byte[] data) throws IOException
+    {
+        out.write(data);
+        out.flush();
+    }
+
+    // called once per direction when forwarding stops and both sockets are closed
+    void disconnected(Socket from, Socket to)
+    {
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException
+    {
+        long wait = nanoTime - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    static void closeQuietly(Socket socket)
+    {
+        try {
+            socket.close();
+        }
+        catch (IOException ex) {
+            // ignore
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        closed = true;
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    private static class Chunk
+    {
+        static final Chunk EOF = new Chunk(new byte[0], 0);
+
+        final byte[] data;
+        final long releaseAt;
+
+        Chunk(byte[] data, long releaseAt)
+        {
+            this.data = data;
+            this.releaseAt = releaseAt;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Generates a directory tree for the embedded SFTP server.
+// Files are zero-length, or sparse files of fileSize bytes, so that millions of files cost only inodes.
+// Files are spread round-robin over the fanOut^depth leaf directories.
+class SyntheticTreeGenerator
+{
+    private int fanOut = 1;
+    private int depth = 0;
+    private long fileSize = 0;
+    private String fileNameFormat = "file-%08d.csv";
+
+    SyntheticTreeGenerator fanOut(int fanOut)
+    {
+        this.fanOut = fanOut;
+        return this;
+    }
+
+    SyntheticTreeGenerator depth(int depth)
+    {
+        this.depth = depth;
+        return this;
+    }
+
+    SyntheticTreeGenerator fileSize(long bytes)
+    {
+        this.fileSize = bytes;
+        return this;
+    }
+
+    SyntheticTreeGenerator fileNameFormat(String format)
+    {
+        this.fileNameFormat = format;
+        return this;
+    }
+
+    // returns the leaf directories
+    List<Path> generate(Path root, int fileCount) throws IOException
+    {
+        List<Path> leaves = new ArrayList<>();
+        leaves.add(root);
+        for (int level = 0; level < depth; level++) {
+            List<Path> next = new ArrayList<>();
+            for (Path dir : leaves) {
+                for (int i = 0; i < fanOut; i++) {
+                    next.add(dir.resolve(String.format("dir-%04d", i)));
+                }
+            }
+            leaves = next;
+        }
+        for (Path dir : leaves) {
+            Files.createDirectories(dir);
+        }
+
+        for (int i = 0; i < fileCount; i++) {
+            Path file = leaves.get(i % leaves.size()).resolve(String.format(fileNameFormat, i));
+            if (fileSize == 0) {
+                Files.createFile(file);
+            }
+            else {
+                try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                    raf.setLength(fileSize);
+                }
+            }
+        }
+        return leaves;
+    }
+}
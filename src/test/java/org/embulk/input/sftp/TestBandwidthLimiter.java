@@ -0,0 +1,54 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestBandwidthLimiter
+{
+    @Test
+    public void checkUnlimitedDoesNotWrap()
+    {
+        InputStream in = new ByteArrayInputStream(new byte[0]);
+        assertSame(in, BandwidthLimiter.UNLIMITED.limit(in));
+    }
+
+    @Test
+    public void checkRateIsSharedByStreams() throws Exception
+    {
+        long bytesPerSecond = 4 * 1024 * 1024;
+        BandwidthLimiter limiter = new BandwidthLimiter(bytesPerSecond);
+        InputStream first = limiter.limit(new ByteArrayInputStream(new byte[1024 * 1024]));
+        InputStream second = limiter.limit(new ByteArrayInputStream(new byte[1024 * 1024]));
+
+        long start = System.nanoTime();
+        byte[] buffer = new byte[32 * 1024];
+        while (first.read(buffer) >= 0 | second.read(buffer) >= 0) {
+            // read both streams alternately
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        // 2MB at 4MB/s takes 500 ms minus the 100 ms burst
+        assertTrue("read took " + elapsedMillis + " ms", elapsedMillis >= 350);
+    }
+}
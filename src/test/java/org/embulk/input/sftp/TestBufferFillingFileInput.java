@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.spi.Buffer;
+import org.embulk.spi.Exec;
+import org.embulk.util.file.InputStreamFileInput;
+import org.embulk.util.file.InputStreamFileInput.InputStreamWithHints;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestBufferFillingFileInput
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Test
+    public void testFillsBuffers() throws Exception
+    {
+        byte[] first = new byte[1000000];
+        new Random(0).nextBytes(first);
+        byte[] second = "a,1\n".getBytes("UTF-8");
+        FakeProvider provider = new FakeProvider(Arrays.asList(first, second));
+
+        List<byte[]> read = new ArrayList<>();
+        try (BufferFillingFileInput input = new BufferFillingFileInput(Exec.getBufferAllocator(), provider)) {
+            while (input.nextFile()) {
+                assertEquals(Optional.of("file-" + read.size()), input.hintOfCurrentInputFileNameForLogging());
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                List<Integer> sizes = new ArrayList<>();
+                Buffer buffer;
+                while ((buffer = input.poll()) != null) {
+                    byte[] bytes = new byte[buffer.limit()];
+                    buffer.getBytes(0, bytes, 0, bytes.length);
+                    out.write(bytes);
+                    sizes.add(buffer.limit());
+                    buffer.release();
+                }
+                // every buffer but the last is full, although the stream returns 1000 bytes at a time
+                for (int size : sizes.subList(0, sizes.size() - 1)) {
+                    assertTrue(size > 1000);
+                    assertEquals((int) sizes.get(0), size);
+                }
+                read.add(out.toByteArray());
+            }
+        }
+        assertEquals(2, read.size());
+        assertArrayEquals(first, read.get(0));
+        assertArrayEquals(second, read.get(1));
+        assertTrue(provider.closed);
+    }
+
+    @Test
+    public void testEmptyFile() throws Exception
+    {
+        FakeProvider provider = new FakeProvider(Arrays.asList(new byte[0]));
+        try (BufferFillingFileInput input = new BufferFillingFileInput(Exec.getBufferAllocator(), provider)) {
+            assertTrue(input.nextFile());
+            assertEquals(null, input.poll());
+            assertFalse(input.nextFile());
+        }
+    }
+
+    private static class FakeProvider
+            implements InputStreamFileInput.Provider
+    {
+        private final Iterator<byte[]> files;
+        private int index = 0;
+        private boolean closed = false;
+
+        FakeProvider(List<byte[]> files)
+        {
+            this.files = files.iterator();
+        }
+
+        @Override
+        public InputStreamWithHints openNextWithHints()
+        {
+            if (!files.hasNext()) {
+                return null;
+            }
+            InputStream in = new FilterInputStream(new ByteArrayInputStream(files.next()))
+            {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException
+                {
+                    return super.read(b, off, Math.min(len, 1000));
+                }
+            };
+            return new InputStreamWithHints(in, "file-" + index++);
+        }
+
+        @Override
+        public void close()
+        {
+            closed = true;
+        }
+    }
+}
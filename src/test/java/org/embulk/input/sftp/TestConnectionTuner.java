@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestConnectionTuner
+{
+    @Test
+    public void checkComputeKeepsDefaultsOnLowLatencyLink()
+    {
+        // 1ms x 100MB/s = 100KB bdp, smaller than the JSch defaults
+        ConnectionTuner.Parameters params = ConnectionTuner.compute(1.0, 100 * 1024 * 1024);
+        assertEquals(ConnectionTuner.DEFAULT_WINDOW_SIZE, params.getWindowSize());
+        assertEquals(ConnectionTuner.DEFAULT_BULK_REQUESTS * 4, params.getBulkRequests());
+    }
+
+    @Test
+    public void checkComputeGrowsWindowOnLongFatLink()
+    {
+        // 150ms x 25MB/s = 3.75MB bdp, twice of it rounded up to 8MB
+        ConnectionTuner.Parameters params = ConnectionTuner.compute(150.0, 25 * 1024 * 1024);
+        assertEquals(8 * 1024 * 1024, params.getWindowSize());
+        assertEquals(8 * 1024 * 1024 / ConnectionTuner.DEFAULT_PACKET_SIZE, params.getBulkRequests());
+    }
+
+    @Test
+    public void checkComputeIsCapped()
+    {
+        ConnectionTuner.Parameters params = ConnectionTuner.compute(300.0, 1024L * 1024 * 1024);
+        assertEquals(ConnectionTuner.MAX_WINDOW_SIZE, params.getWindowSize());
+        assertEquals(ConnectionTuner.MAX_BULK_REQUESTS, params.getBulkRequests());
+    }
+
+    @Test
+    public void checkProbeGrowsOnlyWhileBoundByPipeline()
+    {
+        ConnectionTuner.Parameters defaults = new ConnectionTuner.Parameters(
+                ConnectionTuner.DEFAULT_BULK_REQUESTS, ConnectionTuner.DEFAULT_WINDOW_SIZE);
+        // 16 x 32KB per 100ms = 5MB/s at most
+        assertTrue(ConnectionTuner.isPipelineBound(defaults, 100.0, 4.5 * 1024 * 1024));
+        assertFalse(ConnectionTuner.isPipelineBound(defaults, 100.0, 2 * 1024 * 1024));
+        // 1ms of RTT does not bind 16 requests below 512MB/s
+        assertFalse(ConnectionTuner.isPipelineBound(defaults, 1.0, 100 * 1024 * 1024));
+    }
+
+    @Test
+    public void checkProbeGrowthIsCapped()
+    {
+        ConnectionTuner.Parameters params = new ConnectionTuner.Parameters(
+                ConnectionTuner.DEFAULT_BULK_REQUESTS, ConnectionTuner.DEFAULT_WINDOW_SIZE);
+        params = ConnectionTuner.grow(params);
+        assertEquals(ConnectionTuner.DEFAULT_BULK_REQUESTS * 4, params.getBulkRequests());
+        assertEquals(ConnectionTuner.DEFAULT_WINDOW_SIZE, params.getWindowSize());
+        for (int i = 0; i < 10; i++) {
+            params = ConnectionTuner.grow(params);
+        }
+        assertEquals(ConnectionTuner.MAX_BULK_REQUESTS, params.getBulkRequests());
+        assertEquals(ConnectionTuner.MAX_WINDOW_SIZE, params.getWindowSize());
+    }
+}
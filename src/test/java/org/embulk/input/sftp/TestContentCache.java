@@ -0,0 +1,195 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Resources;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.impl.StandardFileSystemManager;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestContentCache
+{
+    private static final int PORT = 20027;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private EmbeddedSftpServer server;
+    private File cacheDirectory;
+    private Path dataDirectory;
+    private byte[] sample;
+
+    @Before
+    public void createServer() throws Exception
+    {
+        server = new EmbeddedSftpServer(testFolder.newFolder("server").toPath(), PORT);
+        cacheDirectory = testFolder.newFolder("cache");
+        dataDirectory = Files.createDirectories(server.getRoot().resolve("data"));
+        sample = Files.readAllBytes(Paths.get(Resources.getResource("sample_01.csv").getPath()));
+        Files.write(dataDirectory.resolve("sample_01.csv"), sample);
+        Files.write(dataDirectory.resolve("sample_02.csv"), sample);
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        server.close();
+    }
+
+    @Test
+    public void testSecondReadHitsCache() throws Exception
+    {
+        PluginTask task = cachedTask("/data/sample_01", 1024 * 1024);
+
+        assertArrayEquals(sample, TestWanEmulation.readTask(task, 0));
+        assertArrayEquals(sample, TestWanEmulation.readTask(task, 0));
+
+        ContentCache cache = ContentCache.of(task).get();
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(sample.length, cache.getBytesSaved());
+        assertEquals(1, cacheDirectory.list().length);
+    }
+
+    @Test
+    public void testModifiedFileMisses() throws Exception
+    {
+        PluginTask task = cachedTask("/data/sample_01", 1024 * 1024);
+        assertArrayEquals(sample, TestWanEmulation.readTask(task, 0));
+
+        Files.setLastModifiedTime(dataDirectory.resolve("sample_01.csv"), FileTime.fromMillis(0));
+        task.setFiles(SftpFileInput.listFilesByPrefix(task));
+        assertArrayEquals(sample, TestWanEmulation.readTask(task, 0));
+
+        assertEquals(2, ContentCache.of(task).get().getMisses());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception
+    {
+        // room for one file only
+        PluginTask task = cachedTask("/data/sample", sample.length + 100);
+        assertArrayEquals(sample, TestWanEmulation.readTask(task, 0));
+        assertArrayEquals(sample, TestWanEmulation.readTask(task, 1));
+
+        assertEquals(1, cacheDirectory.list().length);
+        assertEquals(2, ContentCache.of(task).get().getMisses());
+    }
+
+    @Test
+    public void testConcurrentTasksDownloadOnce() throws Exception
+    {
+        final PluginTask task = cachedTask("/data/sample_01", 1024 * 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<byte[]>> reads = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                reads.add(executor.submit(() -> TestWanEmulation.readTask(task, 0)));
+            }
+            for (Future<byte[]> read : reads) {
+                assertArrayEquals(sample, read.get());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        assertEquals(1, ContentCache.of(task).get().getMisses());
+        assertEquals(3, ContentCache.of(task).get().getHits());
+    }
+
+    @Test
+    public void testEntryBeingReadStaysReadableWhenEvicted() throws Exception
+    {
+        // room for one file only
+        ContentCache cache = new ContentCache(cacheDirectory.toPath(), sample.length + 100);
+        StandardFileSystemManager manager = new StandardFileSystemManager();
+        manager.init();
+        try {
+            FileObject first = manager.resolveFile(dataDirectory.resolve("sample_01.csv").toUri().toString());
+            FileObject second = manager.resolveFile(dataDirectory.resolve("sample_02.csv").toUri().toString());
+            try (FileChannel channel = cache.get(first, BandwidthLimiter.UNLIMITED)) {
+                cache.get(second, BandwidthLimiter.UNLIMITED).close();
+                assertEquals(1, cacheDirectory.list().length);
+                assertArrayEquals(sample, ByteStreams.toByteArray(Channels.newInputStream(channel)));
+            }
+        }
+        finally {
+            manager.close();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testConcurrentMissWaitsForRoom() throws Exception
+    {
+        // room for one file only
+        final ContentCache cache = new ContentCache(cacheDirectory.toPath(), sample.length + 100);
+        cache.reserve(sample.length);
+        Thread second = new Thread(() -> {
+            try {
+                cache.reserve(sample.length);
+            }
+            catch (Exception ex) {
+                throw new RuntimeException(ex);
+            }
+        });
+        second.start();
+        second.join(500);
+        assertTrue(second.isAlive());
+        assertEquals(sample.length, cache.getReservedBytes());
+
+        cache.release(sample.length);
+        second.join();
+        assertEquals(sample.length, cache.getReservedBytes());
+    }
+
+    private PluginTask cachedTask(String pathPrefix, long maxSize)
+    {
+        ConfigSource config = server.config(pathPrefix)
+                .set("content_cache_directory", cacheDirectory.getPath())
+                .set("content_cache_max_size", maxSize);
+        PluginTask task = SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        task.setFiles(SftpFileInput.listFilesByPrefix(task));
+        return task;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.embulk.input.sftp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestDigestingInputStream
+{
+    @Test
+    public void checkCrc32c()
+    {
+        MessageDigest digest = new Crc32cDigest();
+        // the check value of CRC-32C
+        assertEquals("e3069283", DigestingInputStream.toHex(digest.digest("123456789".getBytes(StandardCharsets.US_ASCII))));
+
+        byte[] data = new byte[1000];
+        new Random(0).nextBytes(data);
+        byte[] whole = digest.digest(data);
+        for (int i = 0; i < data.length; i += 13) {
+            digest.update(data, i, Math.min(13, data.length - i));
+        }
+        assertArrayEquals(whole, digest.digest());
+        for (byte b : data) {
+            digest.update(b);
+        }
+        assertArrayEquals(whole, digest.digest());
+    }
+
+    @Test
+    public void testVerifiesAtEnd() throws Exception
+    {
+        byte[] data = "a,1\nb,2\n".getBytes(StandardCharsets.UTF_8);
+        for (PluginTask.ChecksumAlgorithm algorithm : new PluginTask.ChecksumAlgorithm[] {
+                PluginTask.ChecksumAlgorithm.CRC32C, PluginTask.ChecksumAlgorithm.SHA256, PluginTask.ChecksumAlgorithm.MD5}) {
+            byte[] expected = DigestingInputStream.newDigest(algorithm).digest(data);
+            drain(new DigestingInputStream(new ByteArrayInputStream(data), algorithm, Optional.of(expected), "data.csv"));
+        }
+    }
+
+    @Test
+    public void testMismatch() throws Exception
+    {
+        byte[] data = "a,1\nb,2\n".getBytes(StandardCharsets.UTF_8);
+        byte[] expected = DigestingInputStream.newDigest(PluginTask.ChecksumAlgorithm.SHA256).digest(data);
+        byte[] truncated = "a,1\n".getBytes(StandardCharsets.UTF_8);
+        try {
+            drain(new DigestingInputStream(new ByteArrayInputStream(truncated), PluginTask.ChecksumAlgorithm.SHA256, Optional.of(expected), "data.csv"));
+            fail();
+        }
+        catch (IOException ex) {
+            assertTrue(ex.getMessage().startsWith("Digest of data.csv (4 bytes)"));
+        }
+    }
+
+    @Test
+    public void checkParseChecksumFile() throws Exception
+    {
+        byte[] md5 = DigestingInputStream.newDigest(PluginTask.ChecksumAlgorithm.MD5).digest(new byte[0]);
+        assertArrayEquals(md5, DigestingInputStream.parseChecksumFile("d41d8cd98f00b204e9800998ecf8427e  data.csv\n", PluginTask.ChecksumAlgorithm.MD5));
+        assertArrayEquals(md5, DigestingInputStream.parseChecksumFile("D41D8CD98F00B204E9800998ECF8427E", PluginTask.ChecksumAlgorithm.MD5));
+        try {
+            DigestingInputStream.parseChecksumFile("d41d8cd98f00b204e9800998ecf8427e", PluginTask.ChecksumAlgorithm.SHA256);
+            fail();
+        }
+        catch (IOException ex) {
+            // a digest of another algorithm
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException
+    {
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[3];
+            while (stream.read(buffer) >= 0) {
+                // drain
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.embulk.EmbulkTestRuntime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// Failures in the middle of listings and transfers, injected by FaultInjectingProxy.
+// Recovery time and wasted bytes are logged to compare retry strategies.
+public class TestFaultInjection
+{
+    private static final Logger log = LoggerFactory.getLogger(TestFaultInjection.class);
+    private static final int PORT = 20025;
+    private static final int LISTED_FILES = 2000;
+    // in the middle of the 1MB file
+    private static final long FAULT_AFTER_BYTES = 256 * 1024;
+    private static final long FAILURE_MILLIS = 10000;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private EmbeddedSftpServer server;
+    private FaultInjectingProxy proxy;
+    private byte[] content;
+
+    @Before
+    public void createServer() throws Exception
+    {
+        server = new EmbeddedSftpServer(testFolder.getRoot().toPath(), PORT);
+        new SyntheticTreeGenerator().generate(server.getRoot().resolve("list"), LISTED_FILES);
+
+        content = new byte[1024 * 1024];
+        new Random(0).nextBytes(content);
+        Path dir = Files.createDirectories(server.getRoot().resolve("data"));
+        Files.write(dir.resolve("large.bin"), content);
+
+        proxy = new FaultInjectingProxy(PORT);
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        proxy.close();
+        server.close();
+    }
+
+    @Test(timeout = 60000)
+    public void testListingRetriesAfterDropInReaddir() throws Exception
+    {
+        // READDIR responses of 2000 files are far larger than the SSH handshake
+        proxy.inject(FaultInjectingProxy.Fault.DROP, 64 * 1024, 1);
+        PluginTask task = taskThrough("/list/");
+
+        long start = System.nanoTime();
+        FileList fileList = SftpFileInput.listFilesByPrefix(task);
+        long recoveryMillis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(1, proxy.getFaultedConnections());
+        assertEquals(LISTED_FILES, fileList.getTaskCount());
+        log.info("Listing recovered from a dropped connection in {} ms, wasting {} bytes", recoveryMillis, proxy.getWastedBytes());
+    }
+
+    @Test(timeout = 60000)
+    public void testReadRetriesRejectedSessions() throws Exception
+    {
+        PluginTask task = listed();
+        while (proxy.getActiveSessions() > 0) {
+            // wait until the session of the listing is closed
+            Thread.sleep(10);
+        }
+        proxy.maxSessions(1);
+        final Socket holder = new Socket(EmbeddedSftpServer.HOST, proxy.getPort());
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(1000);
+            }
+            catch (InterruptedException ex) {
+                // close now
+            }
+            ShapingProxy.closeQuietly(holder);
+        });
+        releaser.start();
+
+        long start = System.nanoTime();
+        byte[] read = TestWanEmulation.readTask(task, 0);
+        long recoveryMillis = (System.nanoTime() - start) / 1000000;
+        releaser.join();
+
+        assertArrayEquals(content, read);
+        assertTrue(proxy.getRejectedSessions() > 0);
+        log.info("Read recovered from {} rejected sessions in {} ms", proxy.getRejectedSessions(), recoveryMillis);
+    }
+
+    @Test(timeout = 60000)
+    public void testReadSurvivesStall() throws Exception
+    {
+        PluginTask task = listed();
+        proxy.inject(FaultInjectingProxy.Fault.STALL, 256 * 1024, 1).stallMillis(2000);
+
+        long start = System.nanoTime();
+        byte[] read = TestWanEmulation.readTask(task, 0);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertArrayEquals(content, read);
+        assertTrue("read took " + elapsedMillis + " ms", elapsedMillis >= 2000);
+        log.info("Read through a 2000 ms stall took {} ms", elapsedMillis);
+    }
+
+    @Test(timeout = 60000)
+    public void testReadNeverReturnsTruncatedDataAfterDrop() throws Exception
+    {
+        PluginTask task = listed();
+        proxy.inject(FaultInjectingProxy.Fault.DROP, FAULT_AFTER_BYTES, 1);
+        assertFailsMidTransfer(task, "dropped connection");
+    }
+
+    @Test(timeout = 60000)
+    public void testReadNeverReturnsCorruptedData() throws Exception
+    {
+        PluginTask task = listed();
+        proxy.inject(FaultInjectingProxy.Fault.CORRUPT, FAULT_AFTER_BYTES, 1);
+        assertFailsMidTransfer(task, "corrupted packet");
+    }
+
+    // The read path retries only opening a file, so a failure in the middle of a transfer fails the task
+    // with the IOException of the stream, and everything transferred so far is wasted. It must surface
+    // without waiting for a timeout, and must never look like a successful read of different data.
+    private void assertFailsMidTransfer(PluginTask task, String fault) throws Exception
+    {
+        long start = System.nanoTime();
+        try {
+            TestWanEmulation.readTask(task, 0);
+            fail("Read returned after a " + fault);
+        }
+        catch (IOException ex) {
+            long failureMillis = (System.nanoTime() - start) / 1000000;
+            log.info("Read failed by a {} after {} ms, wasting {} bytes: {}",
+                    fault, failureMillis, proxy.getWastedBytes(), ex.toString());
+            assertTrue("failed after " + failureMillis + " ms", failureMillis < FAILURE_MILLIS);
+        }
+        assertEquals(1, proxy.getFaultedConnections());
+        // the faulted connection sent no more than the bytes before the fault
+        assertTrue("wasted " + proxy.getWastedBytes() + " bytes", proxy.getWastedBytes() <= FAULT_AFTER_BYTES);
+    }
+
+    // lists /data/large through the proxy before any fault is armed
+    private PluginTask listed()
+    {
+        PluginTask task = taskThrough("/data/large");
+        task.setFiles(SftpFileInput.listFilesByPrefix(task));
+        return task;
+    }
+
+    private PluginTask taskThrough(String pathPrefix)
+    {
+        return SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.createConfigMapper()
+                .map(server.config(pathPrefix).set("port", proxy.getPort()), PluginTask.class);
+    }
+}
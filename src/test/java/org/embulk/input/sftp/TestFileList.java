@@ -22,7 +22,13 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class TestFileList
 {
@@ -90,6 +96,118 @@ public class TestFileList
         }
     }
 
+    @Test
+    public void checkSplitFileSize()
+            throws Exception
+    {
+        FileList fileList = newFileList(config.deepCopy().set("split_file_size", 100),
+                "sample_00.csv", 250L,
+                "sample_01.csv.gz", 250L,
+                "sample_02.csv", 100L);
+
+        assertEquals(5, fileList.getTaskCount());
+        assertEquals("sample_00.csv", fileList.get(0).get(0));
+        assertEquals("sample_00.csv", fileList.get(1).get(0));
+        assertEquals("sample_00.csv", fileList.get(2).get(0));
+        assertEquals("sample_01.csv.gz", fileList.get(3).get(0));
+        assertEquals("sample_02.csv", fileList.get(4).get(0));
+
+        FileList.Entry last = fileList.getEntries(2).get(0);
+        assertEquals(Long.valueOf(200), last.getRangeStart());
+        assertEquals(Long.valueOf(250), last.getRangeEnd());
+        assertEquals(50, last.getSize());
+        assertFalse(fileList.getEntries(3).get(0).isRange());
+        assertFalse(fileList.getEntries(4).get(0).isRange());
+    }
+
+    @Test
+    public void checkRangesOfFileShareThePath()
+            throws Exception
+    {
+        FileList fileList = newFileList(config.deepCopy().set("split_file_size", 100).set("min_task_size", 1000),
+                "sample_00.csv", 250L,
+                "sample_01.csv", 250L);
+
+        assertEquals(1, fileList.getTaskCount());
+        assertEquals(Arrays.asList("sample_00.csv", "sample_00.csv", "sample_00.csv", "sample_01.csv", "sample_01.csv", "sample_01.csv"),
+                fileList.get(0));
+    }
+
+    @Test
+    public void checkFilesPerTask()
+            throws Exception
+    {
+        FileList.Builder builder = new FileList.Builder(config.deepCopy()).filesPerTask(2);
+        for (String name : Arrays.asList("sample_00", "sample_01", "sample_02", "sample_03", "sample_04")) {
+            builder.addName(name);
+        }
+        FileList fileList = builder.build();
+
+        assertEquals(3, fileList.getTaskCount());
+        assertEquals(Arrays.asList("sample_00", "sample_01"), fileList.get(0));
+        assertEquals(Arrays.asList("sample_02", "sample_03"), fileList.get(1));
+        assertEquals(Arrays.asList("sample_04"), fileList.get(2));
+        assertFalse(fileList.getEntries(0).get(0).hasSize());
+    }
+
+    @Test
+    public void checkExcludeSuffix()
+            throws Exception
+    {
+        FileList.Builder builder = new FileList.Builder(config.deepCopy()).excludeSuffix(".sha256");
+        assertTrue(builder.add("sample_00.csv", 10));
+        assertFalse(builder.add("sample_00.csv.sha256", 10));
+        assertFalse(builder.addName("sample_01.csv.sha256"));
+        FileList fileList = builder.build();
+
+        assertEquals(1, fileList.getTaskCount());
+        assertEquals(Arrays.asList("sample_00.csv"), fileList.get(0));
+    }
+
+    @Test
+    public void checkNameHashTaskCount()
+            throws Exception
+    {
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            names.add(String.format("sample_%02d.csv", i));
+        }
+        FileList first = newNameList(names, "/a/");
+        FileList second = newNameList(names.subList(50, 100), "/b/");
+
+        assertTrue(first.getTaskCount() <= 4);
+        int total = 0;
+        for (int i = 0; i < first.getTaskCount(); i++) {
+            total += first.get(i).size();
+        }
+        assertEquals(100, total);
+        // files go to the same task whatever the other files and the directory are
+        assertTrue(namesOfTaskOf(first, "sample_70.csv").containsAll(namesOfTaskOf(second, "sample_70.csv")));
+    }
+
+    private FileList newNameList(List<String> names, String directory)
+    {
+        FileList.Builder builder = new FileList.Builder(config.deepCopy()).nameHashTaskCount(4);
+        for (String name : names) {
+            builder.addName(directory + name);
+        }
+        return builder.build();
+    }
+
+    private static List<String> namesOfTaskOf(FileList fileList, String name)
+    {
+        for (int i = 0; i < fileList.getTaskCount(); i++) {
+            List<String> names = new ArrayList<>();
+            for (String path : fileList.get(i)) {
+                names.add(path.substring(path.lastIndexOf('/') + 1));
+            }
+            if (names.contains(name)) {
+                return names;
+            }
+        }
+        throw new AssertionError(name + " is not listed");
+    }
+
     private static FileList newFileList(ConfigSource config, Object... nameAndSize)
     {
         FileList.Builder builder = new FileList.Builder(config);
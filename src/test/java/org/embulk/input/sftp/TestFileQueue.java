@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.embulk.EmbulkTestRuntime;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TestFileQueue
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Test
+    public void checkTasksPullLargestFirst()
+    {
+        PluginTask task = task(new FileList.Builder().pathMatchPattern(".*"), "small", 10, "medium", 200, "large", 3000);
+        FileQueue queue = FileQueue.of(task);
+        Iterator<FileQueue.Item> task0 = queue.iterator();
+        Iterator<FileQueue.Item> task1 = FileQueue.of(task).iterator();
+
+        assertEquals("large", task1.next().getKey());
+        assertEquals("medium", task0.next().getKey());
+        assertEquals("small", task1.next().getKey());
+        assertFalse(task0.hasNext());
+        assertFalse(task1.hasNext());
+    }
+
+    @Test
+    public void checkQueueIsDroppedWhenTransactionEnds()
+    {
+        PluginTask task = task(new FileList.Builder().pathMatchPattern(".*"), "a", 1, "b", 2);
+        FileQueue queue = FileQueue.of(task);
+        // a task which never opens a file doesn't keep the queue
+        assertSame(queue, FileQueue.of(task));
+        FileQueue.drop(task);
+        assertNotSame(queue, FileQueue.of(task));
+    }
+
+    @Test
+    public void checkRangesAreQueuedSeparately()
+    {
+        PluginTask task = task(new FileList.Builder().pathMatchPattern(".*").splitFileSize(100), "a.csv", 250, "b.csv", 50);
+        List<String> pulled = new ArrayList<>();
+        Iterator<FileQueue.Item> items = FileQueue.of(task).iterator();
+        while (items.hasNext()) {
+            FileQueue.Item item = items.next();
+            pulled.add(item.getKey() + ":" + item.getEntry().getSize());
+        }
+        assertEquals(4, pulled.size());
+        assertEquals("a.csv:100", pulled.get(0));
+        assertEquals("a.csv:100", pulled.get(1));
+        // files of the same size keep the order of the list
+        assertEquals("a.csv:50", pulled.get(2));
+        assertEquals("b.csv:50", pulled.get(3));
+    }
+
+    @Test
+    public void checkStaticItemsIncludeEveryFileOfTask()
+    {
+        FileList.Builder builder = new FileList.Builder().pathMatchPattern(".*").minTaskSize(1000);
+        builder.add("a", 10);
+        builder.add("b", 20);
+        List<FileQueue.Item> items = FileQueue.items(builder.build(), 0);
+        assertEquals(2, items.size());
+        assertEquals("a", items.get(0).getKey());
+        assertEquals("b", items.get(1).getKey());
+    }
+
+    @Test
+    public void checkLastReadPathStopsAtFirstUnreadFile()
+    {
+        PluginTask task = task(new FileList.Builder().pathMatchPattern(".*"), "a", 10, "b", 20, "c", 30);
+        List<FileQueue.Item> all = FileQueue.all(task.getFiles());
+        Set<String> processed = new HashSet<>();
+        processed.add(FileQueue.describe(task, all.get(0)));
+        processed.add(FileQueue.describe(task, all.get(2)));
+
+        Set<String> unread = new HashSet<>();
+        assertEquals(Optional.of("a"), SftpFileInputPlugin.lastReadPath(task, processed, unread));
+        assertEquals(Collections.singleton(SftpFileInput.getRelativePath(task, Optional.of("b"))), unread);
+    }
+
+    @Test
+    public void checkLastReadPathKeepsLastPathWhenNothingRead()
+    {
+        PluginTask task = task(new FileList.Builder().pathMatchPattern(".*"), "a", 10);
+        Set<String> unread = new HashSet<>();
+        assertEquals(Optional.empty(), SftpFileInputPlugin.lastReadPath(task, new HashSet<>(), unread));
+        assertEquals(1, unread.size());
+    }
+
+    private PluginTask task(FileList.Builder builder, Object... pathAndSizes)
+    {
+        for (int i = 0; i < pathAndSizes.length; i += 2) {
+            builder.add((String) pathAndSizes[i], ((Number) pathAndSizes[i + 1]).longValue());
+        }
+        PluginTask task = SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.createConfigMapper().map(
+                SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.newConfigSource()
+                        .set("host", "localhost")
+                        .set("user", "user")
+                        .set("path_prefix", "/")
+                        .set("dynamic_task_assignment", true),
+                PluginTask.class);
+        task.setFiles(builder.build());
+        task.setWorkQueueId(Optional.of(UUID.randomUUID().toString()));
+        return task;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import com.jcraft.jsch.JSchException;
+import org.apache.commons.vfs2.FileSystemException;
+import org.junit.Test;
+
+import java.net.SocketException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestHostConcurrencyGovernor
+{
+    @Test
+    public void checkAdditiveIncreaseMultiplicativeDecrease() throws Exception
+    {
+        HostConcurrencyGovernor governor = new HostConcurrencyGovernor("127.0.0.1:22", 8);
+        for (int i = 0; i < 4; i++) {
+            governor.acquire();
+        }
+        // the fifth handshake is rejected with 4 sessions open
+        assertTrue(governor.onRejected());
+        assertEquals(2, governor.getLimit());
+
+        // rejections right after a decrease don't lower the limit again
+        assertTrue(governor.onRejected());
+        assertEquals(2, governor.getLimit());
+
+        governor.onSuccess();
+        governor.onSuccess();
+        assertEquals(3, governor.getLimit());
+    }
+
+    @Test
+    public void checkRejectionWithoutOtherSessionsBacksOff()
+    {
+        HostConcurrencyGovernor governor = new HostConcurrencyGovernor("127.0.0.1:22", 8);
+        assertFalse(governor.onRejected());
+        assertEquals(8, governor.getLimit());
+    }
+
+    @Test
+    public void checkChannelsTakeOnlyFreePermits() throws Exception
+    {
+        HostConcurrencyGovernor governor = new HostConcurrencyGovernor("127.0.0.1:22", 4);
+        governor.acquire();
+        governor.acquire();
+        // a spool of 4 channels on one of the sessions gets 2 more
+        assertEquals(2, governor.tryAcquire(3));
+        assertEquals(0, governor.tryAcquire(3));
+        governor.release(2);
+        assertEquals(1, governor.tryAcquire(1));
+        assertEquals(5, HostConcurrencyGovernor.UNLIMITED.tryAcquire(5));
+    }
+
+    @Test
+    public void checkUnlimitedNeverWaits() throws Exception
+    {
+        for (int i = 0; i < 1000; i++) {
+            HostConcurrencyGovernor.UNLIMITED.acquire();
+        }
+        assertFalse(HostConcurrencyGovernor.UNLIMITED.onRejected());
+    }
+
+    @Test
+    public void checkHandshakeRejection()
+    {
+        assertTrue(HostConcurrencyGovernor.isHandshakeRejection(
+                new FileSystemException("connect failed", new JSchException("Session.connect: java.net.SocketException: Connection reset"))));
+        assertTrue(HostConcurrencyGovernor.isHandshakeRejection(
+                new FileSystemException("connect failed", new JSchException("connection is closed by foreign host"))));
+        assertTrue(HostConcurrencyGovernor.isHandshakeRejection(new SocketException("Broken pipe")));
+        assertFalse(HostConcurrencyGovernor.isHandshakeRejection(
+                new FileSystemException("connect failed", new JSchException("Auth fail"))));
+        assertFalse(HostConcurrencyGovernor.isHandshakeRejection(
+                new FileSystemException("connect failed", new JSchException("java.net.ConnectException: Connection refused"))));
+    }
+}
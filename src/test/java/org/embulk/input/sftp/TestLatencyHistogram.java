@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestLatencyHistogram
+{
+    @Test
+    public void checkBucketsAndPercentiles()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1500 * 1000L); // 1.5ms
+        }
+        histogram.record(3 * 1000 * 1000 * 1000L); // 3s
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(2048, histogram.getP50Micros());
+        assertEquals(2048, histogram.getP99Micros());
+        assertEquals(3000000, histogram.getMaxMicros());
+        assertEquals(99, histogram.getBucketCounts()[11]);
+        assertEquals(1, histogram.getBucketCounts()[22]);
+    }
+
+    @Test
+    public void checkDisabledRecordsNothing()
+    {
+        OperationLatencies.DISABLED.record(OperationLatencies.Operation.READ_CALL, 1000);
+        assertEquals(false, OperationLatencies.DISABLED.isEnabled());
+    }
+}
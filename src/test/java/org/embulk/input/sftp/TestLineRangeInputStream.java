@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import com.google.common.io.Resources;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestLineRangeInputStream
+{
+    @Test
+    public void checkRangesReadEveryLineOnce() throws Exception
+    {
+        for (String resource : new String[] {"sample_01.csv", "sample_02.csv"}) {
+            byte[] data = Files.readAllBytes(Paths.get(Resources.getResource(resource).getPath()));
+            for (int splitSize = 1; splitSize <= data.length + 1; splitSize++) {
+                assertArrayEquals(resource + " split by " + splitSize, data, readRanges(data, splitSize));
+            }
+        }
+    }
+
+    @Test
+    public void checkEdgeCases() throws Exception
+    {
+        for (String text : new String[] {"a\nb\n\n\nc", "\n\n\n", "no newline", "a\r\nb\r\n"}) {
+            byte[] data = text.getBytes(StandardCharsets.UTF_8);
+            for (int splitSize = 1; splitSize <= data.length; splitSize++) {
+                assertArrayEquals(text + " split by " + splitSize, data, readRanges(data, splitSize));
+            }
+        }
+    }
+
+    @Test
+    public void checkRangeStartingInTheMiddleOfLine() throws Exception
+    {
+        byte[] data = "aaaa\nbbbb\ncccc\n".getBytes(StandardCharsets.UTF_8);
+        assertEquals("aaaa\nbbbb\n", new String(readRange(data, 0, 6), StandardCharsets.UTF_8));
+        assertEquals("cccc\n", new String(readRange(data, 6, 15), StandardCharsets.UTF_8));
+        // a range starting right after a newline owns the line
+        assertEquals("bbbb\n", new String(readRange(data, 5, 6), StandardCharsets.UTF_8));
+    }
+
+    private static byte[] readRanges(byte[] data, int splitSize) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (long start = 0; start < data.length; start += splitSize) {
+            out.write(readRange(data, start, Math.min(data.length, start + splitSize)));
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readRange(byte[] data, long start, long end) throws IOException
+    {
+        InputStream in = new ByteArrayInputStream(data);
+        in.skip(LineRangeInputStream.seekPosition(start));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream range = new LineRangeInputStream(in, start, end)) {
+            byte[] buffer = new byte[7];
+            int n;
+            while ((n = range.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+}
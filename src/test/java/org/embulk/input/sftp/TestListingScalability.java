@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.embulk.EmbulkTestRuntime;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+// Listing time and heap budgets at 100k, 1M and 5M files.
+// It takes long and needs a large heap, so it runs only with "./gradlew test -Pscalability".
+public class TestListingScalability
+{
+    private static final Logger log = LoggerFactory.getLogger(TestListingScalability.class);
+    private static final int PORT = 20024;
+    private static final int[] FILE_COUNTS = {100000, 1000000, 5000000};
+
+    // budgets per file. A listing of 5M files gets about 2 minutes and 2.5 GB of heap, well below the heap of the
+    // test, so a listing which slows down to a round trip per file or holds FileObjects fails.
+    private static final long LISTING_NANOS_PER_FILE = 25000;
+    private static final long LISTING_HEAP_BYTES_PER_FILE = 512;
+    private static final long FILE_LIST_NANOS_PER_FILE = 5000;
+    private static final long FILE_LIST_HEAP_BYTES_PER_FILE = 256;
+    // the listing keeps names and sizes instead of FileObjects, and no FileObject is cached after it
+    private static final int RETAINED_HEAP_FILE_COUNT = 1000000;
+    private static final long LISTING_WITHOUT_FILE_OBJECTS_HEAP_BYTES_PER_FILE = 512;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    @Before
+    public void checkEnabled()
+    {
+        assumeTrue(Boolean.getBoolean("embulk.input.sftp.scalability"));
+    }
+
+    @Test
+    public void checkFileListBudgets()
+    {
+        for (int count : FILE_COUNTS) {
+            long baseline = resetPeakHeap();
+            long start = System.nanoTime();
+            FileList.Builder builder = new FileList.Builder().pathMatchPattern(".*");
+            for (int i = 0; i < count; i++) {
+                builder.add(String.format("sftp://username@127.0.0.1:22/data/file-%08d.csv", i), 1024);
+            }
+            FileList fileList = builder.build();
+            long elapsed = System.nanoTime() - start;
+            long heap = peakHeap() - baseline;
+
+            assertEquals(count, fileList.getTaskCount());
+            assertBudgets("FileList", count, elapsed, FILE_LIST_NANOS_PER_FILE, heap, FILE_LIST_HEAP_BYTES_PER_FILE);
+        }
+    }
+
+    @Test
+    public void checkListFilesByPrefixBudgets() throws Exception
+    {
+        for (int count : FILE_COUNTS) {
+            Path root = testFolder.newFolder("tree-" + count).toPath();
+            new SyntheticTreeGenerator().generate(root.resolve("data"), count);
+
+            try (EmbeddedSftpServer server = new EmbeddedSftpServer(root, PORT)) {
+                PluginTask task = SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.createConfigMapper()
+                        .map(server.config("/data/").set("min_task_size", Long.MAX_VALUE), PluginTask.class);
+                long baseline = resetPeakHeap();
+                long start = System.nanoTime();
+                FileList fileList = SftpFileInput.listFilesByPrefix(task);
+                long elapsed = System.nanoTime() - start;
+                long heap = peakHeap() - baseline;
+
+                assertEquals(count, fileList.get(0).size());
+                assertBudgets("listFilesByPrefix", count, elapsed, LISTING_NANOS_PER_FILE, heap, LISTING_HEAP_BYTES_PER_FILE);
+            }
+        }
+    }
+
+    @Test
+    public void checkListingDoesNotKeepFileObjects() throws Exception
+    {
+        Path root = testFolder.newFolder("tree-retained").toPath();
+        new SyntheticTreeGenerator().generate(root.resolve("data"), RETAINED_HEAP_FILE_COUNT);
+
+        try (EmbeddedSftpServer server = new EmbeddedSftpServer(root, PORT)) {
+            PluginTask task = SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.createConfigMapper()
+                    .map(server.config("/data/").set("min_task_size", Long.MAX_VALUE), PluginTask.class);
+            long baseline = resetPeakHeap();
+            long before = usedHeap();
+            FileList fileList = SftpFileInput.listFilesByPrefix(task);
+            long peak = peakHeap() - baseline;
+            System.gc();
+            long retained = usedHeap() - before;
+
+            assertEquals(RETAINED_HEAP_FILE_COUNT, fileList.get(0).size());
+            log.info("listFilesByPrefix of {} files: peak heap {} MB, retained {} MB",
+                    RETAINED_HEAP_FILE_COUNT, peak / 1024 / 1024, retained / 1024 / 1024);
+            assertTrue(String.format("listFilesByPrefix used %d MB of heap", peak / 1024 / 1024),
+                    peak <= LISTING_WITHOUT_FILE_OBJECTS_HEAP_BYTES_PER_FILE * RETAINED_HEAP_FILE_COUNT);
+            assertTrue(String.format("listFilesByPrefix kept %d MB of heap", retained / 1024 / 1024),
+                    retained <= FILE_LIST_HEAP_BYTES_PER_FILE * RETAINED_HEAP_FILE_COUNT);
+        }
+    }
+
+    private static void assertBudgets(String name, int count, long elapsedNanos, long nanosPerFile, long heapBytes, long heapBytesPerFile)
+    {
+        log.info("{} of {} files: {} ms, peak heap {} MB", name, count, elapsedNanos / 1000000, heapBytes / 1024 / 1024);
+        assertTrue(String.format("%s of %d files took %d ms", name, count, elapsedNanos / 1000000),
+                elapsedNanos <= nanosPerFile * count);
+        assertTrue(String.format("%s of %d files used %d MB of heap", name, count, heapBytes / 1024 / 1024),
+                heapBytes <= heapBytesPerFile * count);
+    }
+
+    // returns the heap in use by the pools of peakHeap, which the peak includes
+    private static long resetPeakHeap()
+    {
+        System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (isMeasured(pool)) {
+                pool.resetPeakUsage();
+                used += pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static long usedHeap()
+    {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    // sum of the peaks of the heap pools. It is an upper bound because pools peak at different times.
+    private static long peakHeap()
+    {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (isMeasured(pool)) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    // eden fills up with garbage until a young collection whatever the listing keeps, so only the objects which
+    // survive a collection count
+    private static boolean isMeasured(MemoryPoolMXBean pool)
+    {
+        return pool.getType() == MemoryType.HEAP && !pool.getName().contains("Eden");
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import com.google.common.io.Resources;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Optional;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestLocalSpool
+{
+    private static final int PORT = 20026;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private EmbeddedSftpServer server;
+    private File spoolDirectory;
+
+    @Before
+    public void createServer() throws Exception
+    {
+        server = new EmbeddedSftpServer(testFolder.newFolder("server").toPath(), PORT);
+        spoolDirectory = testFolder.newFolder("spool");
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        server.close();
+    }
+
+    @Test
+    public void testSpoolLargeFileInParallelParts() throws Exception
+    {
+        // 3 parts of 8MB with 4 threads
+        byte[] content = new byte[20 * 1024 * 1024 + 123];
+        new Random(0).nextBytes(content);
+        Path dir = Files.createDirectories(server.getRoot().resolve("data"));
+        Files.write(dir.resolve("large.bin"), content);
+
+        PluginTask task = spoolTask("/data/large", 0);
+        task.setFiles(SftpFileInput.listFilesByPrefix(task));
+
+        assertArrayEquals(content, TestWanEmulation.readTask(task, 0));
+        assertEquals(0, spoolDirectory.list().length);
+    }
+
+    @Test
+    public void testSpoolRangesWithHeader() throws Exception
+    {
+        Path dir = Files.createDirectories(server.getRoot().resolve("data"));
+        Path sample = Paths.get(Resources.getResource("sample_01.csv").getPath());
+        Files.copy(sample, dir.resolve("sample_01.csv"));
+        byte[] data = Files.readAllBytes(sample);
+        int headerLength = new String(data, "UTF-8").indexOf('\n') + 1;
+
+        PluginTask task = spoolTask("/data/sample", 64);
+        task.setSplitHeaderLines(Optional.of(1));
+        task.setFiles(SftpFileInput.listFilesByPrefix(task));
+
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        for (int i = 0; i < task.getFiles().getTaskCount(); i++) {
+            byte[] range = TestWanEmulation.readTask(task, i);
+            // every range starts with the header
+            assertEquals(new String(data, 0, headerLength, "UTF-8"), new String(range, 0, headerLength, "UTF-8"));
+            lines.write(range, headerLength, range.length - headerLength);
+        }
+        assertEquals(new String(data, headerLength, data.length - headerLength, "UTF-8"), lines.toString("UTF-8"));
+        assertEquals(0, spoolDirectory.list().length);
+    }
+
+    private PluginTask spoolTask(String pathPrefix, long splitFileSize)
+    {
+        ConfigSource config = server.config(pathPrefix)
+                .set("spool", "local_disk")
+                .set("spool_directory", spoolDirectory.getPath());
+        if (splitFileSize > 0) {
+            config.set("split_file_size", splitFileSize);
+        }
+        return SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestManifest
+{
+    private static final int PORT = 20029;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private EmbeddedSftpServer server;
+    private Path dir;
+    private Optional<String> manifest = Optional.empty();
+
+    @Before
+    public void createServer() throws Exception
+    {
+        server = new EmbeddedSftpServer(testFolder.getRoot().toPath(), PORT);
+        dir = Files.createDirectories(server.getRoot().resolve("data"));
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        server.close();
+    }
+
+    @Test
+    public void checkEncodeAndDecode()
+    {
+        Manifest.Builder builder = new Manifest.Builder();
+        for (int i = 0; i < 10000; i++) {
+            builder.add(String.format("/partner/2024/01/%02d/events-%06d.csv", i % 31, i), i * 100L, 1700000000L + i);
+        }
+        builder.add("/データ.csv", 0, 0);
+        Manifest decoded = Manifest.decode(builder.build().encode());
+
+        assertEquals(10001, decoded.size());
+        assertTrue(decoded.contains("/partner/2024/01/05/events-000005.csv", 500L, 1700000005L));
+        assertTrue(decoded.contains("/データ.csv", 0, 0));
+        assertFalse(decoded.contains("/partner/2024/01/05/events-000005.csv", 501L, 1700000005L));
+        assertFalse(decoded.contains("/partner/2024/01/05/events-000005.csv", 500L, 1700000006L));
+        assertFalse(decoded.contains("/partner/2024/01/05/events-999999.csv", 500L, 1700000005L));
+    }
+
+    @Test
+    public void checkEncodingIsCompact()
+    {
+        Manifest.Builder builder = new Manifest.Builder();
+        for (int i = 0; i < 100000; i++) {
+            builder.add(String.format("/partner/2024/01/%02d/events-%06d.csv", i % 31, i), 1024L * 1024 + i, 1700000000L + i);
+        }
+        String encoded = builder.build().encode();
+        // each path is 37 bytes, and takes less than 16 bytes with the size and mtime
+        assertTrue("encoded " + encoded.length() + " chars", encoded.length() < 100000 * 16);
+    }
+
+    @Test
+    public void checkRetainModifiedSince()
+    {
+        Manifest manifest = new Manifest.Builder()
+                .add("/a", 1, 100)
+                .add("/b", 1, 200)
+                .build();
+        Manifest retained = Manifest.decode(manifest.merge(150, allOf(manifest), new Manifest.Builder()));
+        assertEquals(1, retained.size());
+        assertTrue(retained.contains("/b", 1, 200));
+    }
+
+    @Test
+    public void checkMerge()
+    {
+        Manifest manifest = new Manifest.Builder()
+                .add("/a", 1, 100)
+                .add("/c", 1, 100)
+                .add("/e", 1, 100)
+                .build();
+        Manifest.Builder listed = new Manifest.Builder()
+                .add("/d", 2, 200)
+                .add("/c", 2, 200)
+                .add("/b", 2, 200);
+        Manifest merged = Manifest.decode(manifest.merge(0, allOf(manifest), listed));
+        assertEquals(5, merged.size());
+        assertTrue(merged.contains("/a", 1, 100));
+        assertTrue(merged.contains("/b", 2, 200));
+        assertTrue(merged.contains("/c", 2, 200));
+        assertTrue(merged.contains("/d", 2, 200));
+        assertTrue(merged.contains("/e", 1, 100));
+
+        Manifest without = Manifest.decode(merged.encodeWithout(new HashSet<>(Arrays.asList("/b", "/e"))));
+        assertEquals(3, without.size());
+        assertFalse(without.contains("/b", 2, 200));
+    }
+
+    @Test
+    public void checkMergeDropsEntriesNotKept()
+    {
+        Manifest manifest = new Manifest.Builder()
+                .add("/a", 1, 100)
+                .add("/b", 1, 100)
+                .add("/c", 1, 100)
+                .build();
+        BitSet kept = new BitSet();
+        kept.set(manifest.indexOf("/a", 1, 100));
+        Manifest merged = Manifest.decode(manifest.merge(0, kept, new Manifest.Builder().add("/c", 2, 200)));
+        assertEquals(2, merged.size());
+        assertTrue(merged.contains("/a", 1, 100));
+        assertTrue(merged.contains("/c", 2, 200));
+    }
+
+    @Test
+    public void testLateFileIsLoaded() throws Exception
+    {
+        write("b.csv", "b\n");
+        write("c.csv", "c\n");
+        assertEquals(listOf("/data/b.csv", "/data/c.csv"), run());
+
+        // sorts before the files which were loaded
+        write("a.csv", "a\n");
+        assertEquals(listOf("/data/a.csv"), run());
+        assertEquals(listOf(), run());
+    }
+
+    @Test
+    public void testChangedFileIsLoadedAgain() throws Exception
+    {
+        write("a.csv", "a\n");
+        write("b.csv", "b\n");
+        assertEquals(listOf("/data/a.csv", "/data/b.csv"), run());
+
+        write("b.csv", "b\nbb\n");
+        assertEquals(listOf("/data/b.csv"), run());
+    }
+
+    @Test
+    public void testFilesOlderThanRetentionAreSkipped() throws Exception
+    {
+        write("a.csv", "a\n");
+        Files.setLastModifiedTime(write("old.csv", "old\n"), FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(40)));
+        assertEquals(listOf("/data/a.csv"), run(30));
+        assertEquals(1, Manifest.decode(manifest.get()).size());
+    }
+
+    @Test
+    public void testDeletedFileIsDroppedFromManifest() throws Exception
+    {
+        write("a.csv", "a\n");
+        write("b.csv", "b\n");
+        assertEquals(listOf("/data/a.csv", "/data/b.csv"), run());
+
+        Files.delete(dir.resolve("a.csv"));
+        assertEquals(listOf(), run());
+        // only b.csv is kept
+        assertEquals(1, Manifest.decode(manifest.get()).size());
+    }
+
+    private Path write(String name, String content) throws Exception
+    {
+        return Files.write(dir.resolve(name), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private List<String> run()
+    {
+        return run(0);
+    }
+
+    // lists the files like a run, and keeps the manifest for the next run
+    private List<String> run(int retentionDays)
+    {
+        ConfigSource config = server.config("/data/")
+                .set("incremental_mode", "manifest");
+        if (retentionDays > 0) {
+            config.set("manifest_retention_days", retentionDays);
+        }
+        PluginTask task = SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        task.setManifest(manifest);
+        FileList fileList = SftpFileInput.listFilesByPrefix(task);
+        manifest = task.getManifest();
+
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < fileList.getTaskCount(); i++) {
+            paths.add(SftpFileInput.getRelativePath(task, Optional.of(fileList.get(i).get(0))));
+        }
+        return paths;
+    }
+
+    private static BitSet allOf(Manifest manifest)
+    {
+        BitSet all = new BitSet();
+        all.set(0, manifest.size());
+        return all;
+    }
+
+    private static List<String> listOf(String... paths)
+    {
+        List<String> list = new ArrayList<>();
+        for (String path : paths) {
+            list.add(path);
+        }
+        return list;
+    }
+}
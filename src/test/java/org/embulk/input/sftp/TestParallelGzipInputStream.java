@@ -0,0 +1,169 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestParallelGzipInputStream
+{
+    @Test
+    public void testMultiMemberFile() throws Exception
+    {
+        byte[] plain = csv(8 * 1024 * 1024);
+        // members of 64KB as bgzip writes
+        assertArrayEquals(plain, decompress(members(plain, 65280, Deflater.DEFAULT_COMPRESSION)));
+    }
+
+    @Test
+    public void testSingleMemberFile() throws Exception
+    {
+        byte[] plain = csv(8 * 1024 * 1024);
+        assertArrayEquals(plain, decompress(members(plain, plain.length, Deflater.DEFAULT_COMPRESSION)));
+    }
+
+    @Test
+    public void testNotGzip() throws Exception
+    {
+        byte[] plain = csv(100000);
+        assertArrayEquals(plain, decompress(plain));
+        assertArrayEquals(new byte[0], decompress(new byte[0]));
+    }
+
+    @Test
+    public void testBytesWhichLookLikeHeaders() throws Exception
+    {
+        // stored blocks keep the bytes as they are, so the compressed data contains the headers
+        byte[] plain = new byte[3 * 1024 * 1024];
+        new Random(0).nextBytes(plain);
+        byte[] header = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 3};
+        for (int i = 100; i + header.length < plain.length; i += 100000) {
+            System.arraycopy(header, 0, plain, i, header.length);
+        }
+        assertArrayEquals(plain, decompress(members(plain, 700000, Deflater.NO_COMPRESSION)));
+        assertArrayEquals(plain, decompress(members(plain, plain.length, Deflater.NO_COMPRESSION)));
+    }
+
+    @Test
+    public void testCorruptFile() throws Exception
+    {
+        byte[] compressed = members(csv(4 * 1024 * 1024), 65280, Deflater.DEFAULT_COMPRESSION);
+        assertFails(Arrays.copyOf(compressed, compressed.length - 5));
+        compressed[compressed.length / 2] ^= 0x55;
+        assertFails(compressed);
+    }
+
+    @Test
+    public void testBudgetSmallerThanSegment() throws Exception
+    {
+        // one segment is in flight at a time, and its output may grow past the budget
+        GzipInflaterPool pool = new GzipInflaterPool(4, 1);
+        byte[] plain = csv(8 * 1024 * 1024);
+        assertArrayEquals(plain, decompress(members(plain, 65280, Deflater.DEFAULT_COMPRESSION), pool));
+        assertEquals(0, pool.getReservedBytes());
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseReleasesBudget() throws Exception
+    {
+        GzipInflaterPool pool = new GzipInflaterPool(4, Long.MAX_VALUE);
+        byte[] compressed = members(csv(8 * 1024 * 1024), 65280, Deflater.DEFAULT_COMPRESSION);
+        try (InputStream in = new ParallelGzipInputStream(new ByteArrayInputStream(compressed), pool)) {
+            in.read(new byte[100]);
+            assertTrue(pool.getReservedBytes() > 0);
+        }
+        // the segments in the pool give the budget back when they finish
+        while (pool.getReservedBytes() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertFails(byte[] compressed)
+    {
+        try {
+            decompress(compressed);
+            fail();
+        }
+        catch (IOException ex) {
+            // expected
+        }
+    }
+
+    private static byte[] decompress(byte[] compressed) throws IOException
+    {
+        return decompress(compressed, new GzipInflaterPool(4, Long.MAX_VALUE));
+    }
+
+    private static byte[] decompress(byte[] compressed, GzipInflaterPool pool) throws IOException
+    {
+        try (InputStream in = new ParallelGzipInputStream(new ByteArrayInputStream(compressed), pool)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[7777];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static byte[] members(byte[] plain, int memberSize, int level) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < plain.length; i += memberSize) {
+            try (GZIPOutputStream member = new LevelGzipOutputStream(out, level)) {
+                member.write(plain, i, Math.min(memberSize, plain.length - i));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] csv(int size)
+    {
+        Random random = new Random(0);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append(random.nextInt(1000000)).append(",abc").append(random.nextInt(100)).append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // GZIPOutputStream with a compression level
+    private static class LevelGzipOutputStream
+            extends GZIPOutputStream
+    {
+        LevelGzipOutputStream(ByteArrayOutputStream out, int level) throws IOException
+        {
+            super(out);
+            def.setLevel(level);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestPrefetchInputStream
+{
+    @Test
+    public void testReadsSameBytes() throws Exception
+    {
+        byte[] data = new byte[1000000];
+        new Random(0).nextBytes(data);
+        AtomicLong chunks = new AtomicLong();
+        // the source returns at most 1000 bytes at a time, as a network stream does
+        try (PrefetchInputStream.Ring ring = new PrefetchInputStream.Ring(4096, 3, "test-read-ahead");
+                InputStream in = new PrefetchInputStream(new ShortReadInputStream(new ByteArrayInputStream(data), 1000), ring,
+                (emptyWaitNanos, fullWaitNanos, n, occupancySum) -> {
+                    chunks.addAndGet(n);
+                    assertTrue(occupancySum <= n);
+                })) {
+            assertEquals(data[0] & 0xff, in.read());
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(data[0]);
+            byte[] buffer = new byte[777];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            assertArrayEquals(data, out.toByteArray());
+            assertEquals(-1, in.read());
+        }
+        assertTrue(chunks.get() > 0);
+    }
+
+    @Test
+    public void testEmptyStream() throws Exception
+    {
+        try (PrefetchInputStream.Ring ring = new PrefetchInputStream.Ring(4096, 2, "test-read-ahead");
+                InputStream in = new PrefetchInputStream(new ByteArrayInputStream(new byte[0]), ring, null)) {
+            assertEquals(-1, in.read(new byte[10]));
+        }
+    }
+
+    @Test
+    public void testFailureIsThrownToReader() throws Exception
+    {
+        InputStream failing = new InputStream()
+        {
+            private int count = 0;
+
+            @Override
+            public int read() throws IOException
+            {
+                if (count++ >= 100) {
+                    throw new IOException("connection reset");
+                }
+                return 'a';
+            }
+        };
+        try (PrefetchInputStream.Ring ring = new PrefetchInputStream.Ring(16, 2, "test-read-ahead");
+                InputStream in = new PrefetchInputStream(failing, ring, null)) {
+            byte[] buffer = new byte[16];
+            while (in.read(buffer) >= 0) {
+                // drain
+            }
+            fail();
+        }
+        catch (IOException ex) {
+            assertEquals("connection reset", ex.getMessage());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseBeforeEnd() throws Exception
+    {
+        // an endless source fills the ring, and the reader thread waits for a free buffer until close
+        InputStream endless = new InputStream()
+        {
+            @Override
+            public int read()
+            {
+                return 'a';
+            }
+        };
+        AtomicLong fullWait = new AtomicLong(-1);
+        try (PrefetchInputStream.Ring ring = new PrefetchInputStream.Ring(16, 2, "test-read-ahead")) {
+            PrefetchInputStream in = new PrefetchInputStream(endless, ring,
+                    (emptyWaitNanos, fullWaitNanos, chunks, occupancySum) -> fullWait.set(fullWaitNanos));
+            assertEquals('a', in.read());
+            Thread.sleep(100);
+            in.close();
+        }
+        assertTrue(fullWait.get() > 0);
+    }
+
+    @Test(timeout = 10000)
+    public void testCloseLetsReadInProgressFinish() throws Exception
+    {
+        // an interrupted read would leave the SFTP channel half consumed
+        AtomicBoolean reading = new AtomicBoolean();
+        AtomicBoolean interrupted = new AtomicBoolean();
+        AtomicBoolean closedWhileReading = new AtomicBoolean();
+        InputStream slow = new InputStream()
+        {
+            @Override
+            public int read()
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len)
+            {
+                reading.set(true);
+                try {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException ex) {
+                    interrupted.set(true);
+                }
+                reading.set(false);
+                b[off] = 'a';
+                return 1;
+            }
+
+            @Override
+            public void close()
+            {
+                closedWhileReading.set(reading.get());
+            }
+        };
+        try (PrefetchInputStream.Ring ring = new PrefetchInputStream.Ring(16, 2, "test-read-ahead")) {
+            PrefetchInputStream in = new PrefetchInputStream(slow, ring, null);
+            assertEquals('a', in.read());
+            in.close();
+        }
+        assertFalse(interrupted.get());
+        assertFalse(closedWhileReading.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testRingIsReusedByTheNextFile() throws Exception
+    {
+        byte[] data = new byte[1000];
+        new Random(0).nextBytes(data);
+        try (PrefetchInputStream.Ring ring = new PrefetchInputStream.Ring(16, 2, "test-read-ahead")) {
+            for (int i = 0; i < 10; i++) {
+                // closed before the end, and after it
+                try (InputStream in = new PrefetchInputStream(new ByteArrayInputStream(data), ring, null)) {
+                    assertEquals(data[0] & 0xff, in.read());
+                    if (i % 2 == 0) {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        out.write(data[0]);
+                        byte[] buffer = new byte[100];
+                        int n;
+                        while ((n = in.read(buffer)) >= 0) {
+                            out.write(buffer, 0, n);
+                        }
+                        assertArrayEquals(data, out.toByteArray());
+                    }
+                }
+            }
+            assertEquals(2, ring.getAllocatedBuffers());
+        }
+    }
+
+    private static class ShortReadInputStream
+            extends FilterInputStream
+    {
+        private final int maxRead;
+
+        ShortReadInputStream(InputStream in, int maxRead)
+        {
+            super(in);
+            this.maxRead = maxRead;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            return super.read(b, off, Math.min(len, maxRead));
+        }
+    }
+}
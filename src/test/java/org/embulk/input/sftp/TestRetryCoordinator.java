@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import com.jcraft.jsch.ChannelSftp;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.SftpException;
+import org.apache.commons.vfs2.FileSystemException;
+import org.embulk.util.retryhelper.RetryGiveupException;
+import org.embulk.util.retryhelper.Retryable;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestRetryCoordinator
+{
+    @Test
+    public void checkDecorrelatedJitterBounds()
+    {
+        long wait = 500;
+        for (int i = 0; i < 1000; i++) {
+            long next = RetryCoordinator.nextWait(wait);
+            assertTrue(next >= 500);
+            assertTrue(next <= Math.min(30000, wait * 3));
+            wait = next;
+        }
+    }
+
+    @Test
+    public void checkBreakerOpensAfterConsecutiveFailures() throws Exception
+    {
+        RetryCoordinator coordinator = new RetryCoordinator("127.0.0.1:22");
+        for (int i = 0; i < RetryCoordinator.FAILURE_THRESHOLD; i++) {
+            assertEquals(RetryCoordinator.State.CLOSED, coordinator.getState());
+            Failing op = new Failing(new IOException("Connection reset"));
+            try {
+                coordinator.runInterruptible(0, op);
+                fail();
+            }
+            catch (RetryGiveupException ex) {
+                assertEquals(1, op.calls);
+            }
+        }
+        assertEquals(RetryCoordinator.State.OPEN, coordinator.getState());
+    }
+
+    @Test
+    public void checkPermanentErrorsAreNotRetried() throws Exception
+    {
+        RetryCoordinator coordinator = new RetryCoordinator("127.0.0.1:22");
+        Failing op = new Failing(new FileSystemException("Could not connect to SFTP server", new JSchException("Auth fail")));
+        try {
+            coordinator.runInterruptible(5, op);
+            fail();
+        }
+        catch (RetryGiveupException ex) {
+            assertEquals(1, op.calls);
+        }
+        assertEquals(RetryCoordinator.State.CLOSED, coordinator.getState());
+    }
+
+    @Test
+    public void checkClassification()
+    {
+        assertTrue(RetryCoordinator.isPermanent(new FileSystemException("read failed",
+                new SftpException(ChannelSftp.SSH_FX_PERMISSION_DENIED, "Permission denied"))));
+        assertTrue(RetryCoordinator.isPermanent(new FileSystemException("read failed",
+                new SftpException(ChannelSftp.SSH_FX_NO_SUCH_FILE, "No such file"))));
+        assertFalse(RetryCoordinator.isPermanent(new FileSystemException("read failed",
+                new SftpException(ChannelSftp.SSH_FX_CONNECTION_LOST, "Connection lost"))));
+        assertFalse(RetryCoordinator.isPermanent(new IOException("Connection reset")));
+        assertTrue(RetryCoordinator.isConfigurationError(new FileSystemException("Could not connect to SFTP server",
+                new ConnectException("Connection refused"))));
+    }
+
+    private static class Failing
+            implements Retryable<Void>
+    {
+        private final Exception exception;
+        private int calls = 0;
+
+        Failing(Exception exception)
+        {
+            this.exception = exception;
+        }
+
+        @Override
+        public Void call() throws Exception
+        {
+            calls++;
+            throw exception;
+        }
+
+        @Override
+        public boolean isRetryableException(Exception exception)
+        {
+            return true;
+        }
+
+        @Override
+        public void onRetry(Exception exception, int retryCount, int retryLimit, int retryWait)
+        {
+        }
+
+        @Override
+        public void onGiveup(Exception firstException, Exception lastException)
+        {
+        }
+    }
+}
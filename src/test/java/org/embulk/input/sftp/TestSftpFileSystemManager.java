@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.apache.commons.vfs2.FileObject;
+import org.embulk.EmbulkTestRuntime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class TestSftpFileSystemManager
+{
+    private static final int PORT = 20030;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private EmbeddedSftpServer server;
+    private PluginTask task;
+
+    @Before
+    public void createServer() throws Exception
+    {
+        server = new EmbeddedSftpServer(testFolder.getRoot().toPath(), PORT);
+        Path data = Files.createDirectories(server.getRoot().resolve("data"));
+        Files.write(data.resolve("a.csv"), "a,1\n".getBytes(StandardCharsets.UTF_8));
+        task = SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.createConfigMapper().map(server.config("/data/"), PluginTask.class);
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        server.close();
+    }
+
+    @Test
+    public void testManagerIsShared()
+    {
+        assertSame(SftpFileSystemManager.shared(), SftpFileSystemManager.shared());
+    }
+
+    @Test
+    public void testSessionsHaveFileSystemsOfTheirOwn() throws Exception
+    {
+        String uri = SftpFileInput.getSftpFileUri(task, "/data/a.csv");
+        try (SftpFileSystemManager.Session first = SftpFileSystemManager.openSession(SftpFileInput.initializeFsOptions(task));
+                SftpFileSystemManager.Session second = SftpFileSystemManager.openSession(SftpFileInput.initializeFsOptions(task))) {
+            FileObject firstFile = first.resolveFile(uri);
+            FileObject secondFile = second.resolveFile(uri);
+            assertNotSame(firstFile.getFileSystem(), secondFile.getFileSystem());
+
+            // closing a session doesn't disconnect the other
+            first.close();
+            assertEquals(4, secondFile.getContent().getSize());
+            assertEquals(4, second.resolveFile(uri).getContent().getSize());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestTailInputStream
+{
+    @Test
+    public void checkPartialLineIsHeldBack() throws Exception
+    {
+        byte[] data = "aaaa\nbbbb\ncc".getBytes(StandardCharsets.UTF_8);
+        TailInputStream tail = new TailInputStream(new ByteArrayInputStream(data), 0, data.length, new byte[0]);
+        assertEquals("aaaa\nbbbb\n", read(tail));
+        assertEquals(10, tail.getOffset());
+    }
+
+    @Test
+    public void checkBytesAfterEndAreNotRead() throws Exception
+    {
+        // the file grew after it was listed
+        byte[] data = "aaaa\nbbbb\ncccc\n".getBytes(StandardCharsets.UTF_8);
+        TailInputStream tail = new TailInputStream(new ByteArrayInputStream(data), 0, 12, new byte[0]);
+        assertEquals("aaaa\nbbbb\n", read(tail));
+        assertEquals(10, tail.getOffset());
+    }
+
+    @Test
+    public void checkNoCompleteLine() throws Exception
+    {
+        byte[] data = "aaaa\nbb".getBytes(StandardCharsets.UTF_8);
+        InputStream in = new ByteArrayInputStream(data);
+        in.skip(5);
+        TailInputStream tail = new TailInputStream(in, 5, data.length, Arrays.copyOf(data, 5));
+        assertEquals("", read(tail));
+        assertEquals(5, tail.getOffset());
+        assertTrue(tail.toTailOffset().matches(Arrays.copyOf(data, 5)));
+    }
+
+    @Test
+    public void checkFingerprintCoversBytesBeforeOffset() throws Exception
+    {
+        byte[] data = new byte[3 * TailOffset.FINGERPRINT_SIZE];
+        new Random(0).nextBytes(data);
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n') {
+                data[i] = ' ';
+            }
+        }
+        data[data.length / 2] = '\n';
+        int lineEnd = data.length / 2 + 1;
+
+        // the window before start is combined with the bytes read
+        int start = 100;
+        InputStream in = new ByteArrayInputStream(data);
+        in.skip(start);
+        TailInputStream tail = new TailInputStream(in, start, data.length, Arrays.copyOf(data, start));
+        assertEquals(lineEnd - start, readBytes(tail).length);
+        assertEquals(lineEnd, tail.getOffset());
+        TailOffset offset = tail.toTailOffset();
+        assertTrue(offset.matches(Arrays.copyOfRange(data, lineEnd - TailOffset.FINGERPRINT_SIZE, lineEnd)));
+        assertEquals(TailOffset.fingerprint(Arrays.copyOfRange(data, lineEnd - TailOffset.FINGERPRINT_SIZE, lineEnd), TailOffset.FINGERPRINT_SIZE),
+                offset.getFingerprint());
+    }
+
+    @Test
+    public void checkLongLines() throws Exception
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            char[] line = new char[100 * 1024];
+            Arrays.fill(line, (char) ('a' + i));
+            sb.append(line).append('\n');
+        }
+        String text = sb.toString();
+        byte[] data = (text + "partial").getBytes(StandardCharsets.UTF_8);
+        TailInputStream tail = new TailInputStream(new ByteArrayInputStream(data), 0, data.length, new byte[0]);
+        assertEquals(text, read(tail));
+        assertEquals(text.length(), tail.getOffset());
+    }
+
+    private static String read(InputStream in) throws IOException
+    {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
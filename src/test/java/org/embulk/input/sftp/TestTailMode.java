@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.util.file.InputStreamFileInput.InputStreamWithHints;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestTailMode
+{
+    private static final int PORT = 20028;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private EmbeddedSftpServer server;
+    private Path log;
+    private Map<String, TailOffset> offsets = new TreeMap<>();
+
+    @Before
+    public void createServer() throws Exception
+    {
+        server = new EmbeddedSftpServer(testFolder.getRoot().toPath(), PORT);
+        log = Files.createDirectories(server.getRoot().resolve("data")).resolve("app.log");
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        server.close();
+    }
+
+    @Test
+    public void testReadOnlyAppendedLines() throws Exception
+    {
+        append("a,1\nb,2\nc,");
+        assertEquals("a,1\nb,2\n", run(0));
+        append("3\nd,4\n");
+        assertEquals("c,3\nd,4\n", run(0));
+        // nothing was appended
+        assertEquals(0, listedFiles(0));
+        append("e,5\n");
+        assertEquals("e,5\n", run(0));
+    }
+
+    @Test
+    public void testHeaderIsPrependedToTail() throws Exception
+    {
+        append("name,value\na,1\n");
+        assertEquals("name,value\na,1\n", run(1));
+        append("b,2\n");
+        assertEquals("name,value\nb,2\n", run(1));
+    }
+
+    @Test
+    public void testReplacedFileIsReadFromHead() throws Exception
+    {
+        append("a,1\nb,2\n");
+        assertEquals("a,1\nb,2\n", run(0));
+        Files.write(log, "x,1\ny,2\nz,3\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals("x,1\ny,2\nz,3\n", run(0));
+    }
+
+    @Test
+    public void testTruncatedFileIsReadFromHead() throws Exception
+    {
+        append("a,1\nb,2\n");
+        assertEquals("a,1\nb,2\n", run(0));
+        Files.write(log, "x\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals("x\n", run(0));
+    }
+
+    private void append(String text) throws Exception
+    {
+        Files.write(log, text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private PluginTask task(int headerLines)
+    {
+        ConfigSource config = server.config("/data/app")
+                .set("incremental_mode", "tail")
+                .set("split_header_lines", headerLines);
+        PluginTask task = SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.createConfigMapper().map(config, PluginTask.class);
+        task.setTailOffsets(offsets);
+        return task;
+    }
+
+    private int listedFiles(int headerLines)
+    {
+        return SftpFileInput.listFilesByPrefix(task(headerLines)).getTaskCount();
+    }
+
+    // lists and reads the file like a run, and keeps the offsets for the next run
+    private String run(int headerLines) throws Exception
+    {
+        PluginTask task = task(headerLines);
+        task.setFiles(SftpFileInput.listFilesByPrefix(task));
+        assertEquals(1, task.getFiles().getTaskCount());
+        offsets = new TreeMap<>(task.getTailOffsets());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (SingleFileProvider provider = new SingleFileProvider(task, 0,
+                SftpFileInput.initializeStandardFileSystemManager(), SftpFileInput.initializeFsOptions(task), new TransferMetrics(0))) {
+            InputStreamWithHints stream;
+            while ((stream = provider.openNextWithHints()) != null) {
+                try (InputStream in = stream.getInputStream()) {
+                    byte[] buffer = new byte[1024];
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, n);
+                    }
+                }
+            }
+            offsets.putAll(provider.getTailOffsets());
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import org.embulk.config.TaskReport;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TestTransferMetrics
+{
+    @Test
+    public void checkTaskReportRoundTrip() throws Exception
+    {
+        TransferMetrics metrics = new TransferMetrics(3);
+        metrics.incrementRetries();
+        try (InputStream in = metrics.meter(new ByteArrayInputStream(new byte[1000]), System.nanoTime())) {
+            byte[] buffer = new byte[300];
+            while (in.read(buffer) >= 0) {
+                // drain
+            }
+        }
+
+        TaskReport report = metrics.toTaskReport(SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.newTaskReport());
+        TransferMetrics restored = TransferMetrics.fromTaskReport(report);
+        assertEquals(3, restored.getTaskIndex());
+        assertEquals(1000L, restored.getBytesRead());
+        assertEquals(1L, (long) report.get(long.class, "files_opened"));
+        assertEquals(1L, (long) report.get(long.class, "retries"));
+
+        // reports of tasks which didn't run the plugin are ignored
+        TransferMetrics.logSummary(Arrays.asList(report, SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.newTaskReport()));
+    }
+
+    @Test
+    public void checkReadAheadInTaskReport()
+    {
+        TransferMetrics metrics = new TransferMetrics(0);
+        TaskReport withoutReadAhead = metrics.toTaskReport(SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.newTaskReport());
+        assertFalse(withoutReadAhead.has("read_ahead_chunks"));
+
+        metrics.readAheadListener().onClose(5000000L, 2000000L, 4, 1.0);
+        metrics.readAheadListener().onClose(1000000L, 0L, 4, 2.0);
+        TaskReport report = metrics.toTaskReport(SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.newTaskReport());
+        assertEquals(6L, (long) report.get(long.class, "read_ahead_empty_wait_millis"));
+        assertEquals(2L, (long) report.get(long.class, "read_ahead_full_wait_millis"));
+        assertEquals(8L, (long) report.get(long.class, "read_ahead_chunks"));
+        assertEquals(0.375, report.get(double.class, "read_ahead_average_occupancy"), 0.0);
+
+        TransferMetrics restored = TransferMetrics.fromTaskReport(report);
+        TaskReport again = restored.toTaskReport(SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.newTaskReport());
+        assertEquals(0.375, again.get(double.class, "read_ahead_average_occupancy"), 0.0);
+        TransferMetrics.logSummary(Arrays.asList(report, withoutReadAhead));
+    }
+
+    @Test
+    public void checkPercentile()
+    {
+        double[] sorted = {1.0, 2.0, 3.0, 4.0, 5.0, 6.0, 7.0, 8.0, 9.0, 10.0};
+        assertEquals(5.0, TransferMetrics.percentile(sorted, 50), 0.0);
+        assertEquals(10.0, TransferMetrics.percentile(sorted, 95), 0.0);
+        assertEquals(10.0, TransferMetrics.percentile(sorted, 99), 0.0);
+        assertEquals(1.0, TransferMetrics.percentile(new double[] {1.0}, 99), 0.0);
+    }
+}
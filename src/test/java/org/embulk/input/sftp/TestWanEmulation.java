@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016 The Embulk project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.embulk.input.sftp;
+
+import com.google.common.io.Resources;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.util.file.InputStreamFileInput.InputStreamWithHints;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// Runs the plugin against the embedded server behind a ShapingProxy which emulates a WAN link
+public class TestWanEmulation
+{
+    private static final int PORT = 20023;
+    private static final long RTT_MILLIS = 100;
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder testFolder = new TemporaryFolder();
+
+    private EmbeddedSftpServer server;
+
+    @Before
+    public void createServer() throws Exception
+    {
+        server = new EmbeddedSftpServer(testFolder.getRoot().toPath(), PORT);
+        Path dir = Files.createDirectories(server.getRoot().resolve("data"));
+        Files.copy(Paths.get(Resources.getResource("sample_01.csv").getPath()), dir.resolve("sample_01.csv"));
+        Files.copy(Paths.get(Resources.getResource("sample_02.csv").getPath()), dir.resolve("sample_02.csv"));
+    }
+
+    @After
+    public void stopServer() throws Exception
+    {
+        server.close();
+    }
+
+    @Test
+    public void testListFilesIsBoundByRtt() throws Exception
+    {
+        try (ShapingProxy proxy = new ShapingProxy(PORT, RTT_MILLIS, 0)) {
+            PluginTask task = taskThrough(proxy, "/data/");
+            long start = System.nanoTime();
+            FileList fileList = SftpFileInput.listFilesByPrefix(task);
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+            assertEquals(2, fileList.getTaskCount());
+            // SSH handshake, authentication and SFTP init take several round trips
+            assertTrue("listing took " + elapsedMillis + " ms", elapsedMillis >= RTT_MILLIS * 3);
+        }
+    }
+
+    @Test
+    public void testReadThroughputIsBoundByBandwidth() throws Exception
+    {
+        byte[] content = new byte[512 * 1024];
+        new Random(0).nextBytes(content);
+        Files.write(server.getRoot().resolve("data").resolve("large.bin"), content);
+
+        long bytesPerSecond = 1024 * 1024;
+        try (ShapingProxy proxy = new ShapingProxy(PORT, RTT_MILLIS, bytesPerSecond)) {
+            PluginTask task = taskThrough(proxy, "/data/large");
+            task.setFiles(SftpFileInput.listFilesByPrefix(task));
+
+            long start = System.nanoTime();
+            byte[] read = readTask(task, 0);
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+            assertArrayEquals(content, read);
+            assertTrue("read took " + elapsedMillis + " ms", elapsedMillis >= content.length * 1000L / bytesPerSecond);
+        }
+    }
+
+    private PluginTask taskThrough(ShapingProxy proxy, String pathPrefix)
+    {
+        return SftpFileInputPlugin.CONFIG_MAPPER_FACTORY.createConfigMapper()
+                .map(server.config(pathPrefix).set("port", proxy.getPort()), PluginTask.class);
+    }
+
+    static byte[] readTask(PluginTask task, int taskIndex) throws Exception
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (SingleFileProvider provider = new SingleFileProvider(task, taskIndex,
+                SftpFileInput.initializeStandardFileSystemManager(), SftpFileInput.initializeFsOptions(task), new TransferMetrics(taskIndex))) {
+            InputStreamWithHints stream;
+            while ((stream = provider.openNextWithHints()) != null) {
+                try (InputStream in = stream.getInputStream()) {
+                    byte[] buffer = new byte[32 * 1024];
+                    int n;
+                    while ((n = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, n);
+                    }
+                }
+            }
+        }
+        return out.toByteArray();
+    }
+}